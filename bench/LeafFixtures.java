@@ -0,0 +1,142 @@
+/**
+ * LeafFixtures This class sets up the operations the JMH benchmarks in
+ * bench/benchmark measure
+ * <p>
+ * JMH only runs benchmarks in a named package, which cannot import the
+ * classes of the default package, so the benchmarks get their operations from
+ * here as Callable. Everything but the call itself is done before the
+ * Callable is returned. The synthetic databases and queries are the ones of
+ * LeafBenchmark.
+ *
+ * @author Karina Becker
+ */
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+public class LeafFixtures {
+    private static final int QUERIES = 64;  // synthetic queries cycled through by the k-NN benchmark
+    private static final int K = 5;
+
+    /**
+     * Hu moments of an image, read in place
+     */
+    public static Callable<Object> moments(String image) throws IOException {
+        final ImageProcessor ip = ImageIngest.getMomentSource(new LeafPipeline().open(image));
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                return new ImageMoments(ip).getAllMoments();
+            }
+        };
+    }
+
+    /**
+     * Hu moments of the binary leaf shape of an image from its traced outline
+     */
+    public static Callable<Object> polygonMoments(String image) throws IOException {
+        final Polygon polygon = outline(image);
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                return new PolygonMoments(polygon).getAllMoments();
+            }
+        };
+    }
+
+    /**
+     * EFD of the leaf outline of an image resampled to a contour length
+     */
+    public static Callable<Object> efd(String image, int points, final int efdCount) throws IOException {
+        final double[][] xy = ContourResampler.resample(outline(image), points);
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                return new EFD(xy[0], xy[1], efdCount).getEfdNormalised();
+            }
+        };
+    }
+
+    /**
+     * Brute force k-NN on a synthetic database, each call classifies the next query
+     *
+     * @param rows double, float32 or int8
+     */
+    public static Callable<Object> knn(int size, String rows) throws IOException {
+        final boolean quantized = !rows.equals("double");
+        final int precision;
+        if (rows.equals("float32")) {
+            precision = QuantizedMatrix.FLOAT32;
+        } else if (rows.equals("int8") || !quantized) {
+            precision = QuantizedMatrix.INT8;
+        } else {
+            throw new IllegalArgumentException("Rows must be double, float32 or int8");
+        }
+        List<LeafSample> reference = FeatureStore.readCsv(KNNPlant.DEFAULT_DATABASE);
+        Random random = new Random(42);
+        final double[][] efdQueries = new double[QUERIES][];
+        final double[][] huQueries = new double[QUERIES][];
+        LeafBenchmark.synthesizeQueries(reference, random, efdQueries, huQueries);
+        final KNNPlant classifier = LeafBenchmark.synthesizeDatabase(reference, random, size);
+        return new Callable<Object>() {
+            private int q;
+
+            @Override
+            public Object call() {
+                q = (q + 1) % QUERIES;
+                return !quantized ? classifier.classify(efdQueries[q], huQueries[q], K)
+                        : classifier.classifyQuantized(efdQueries[q], huQueries[q], K, precision);
+            }
+        };
+    }
+
+    /**
+     * Preparation and largest particle of a decoded image, each call works on a copy of it
+     */
+    public static Callable<Object> preparation(final String image, int pyramidLevel) throws IOException {
+        final LeafPipeline pipeline = new LeafPipeline();
+        pipeline.setPyramidLevel(pyramidLevel);
+        final ImageProcessor decoded = pipeline.open(image).getProcessor();
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                ImagePlus imp = new ImagePlus(image, decoded.duplicate());
+                pipeline.preparation(imp);
+                return pipeline.findLargestArea(imp);
+            }
+        };
+    }
+
+    /**
+     * The whole pipeline for one image file: open, Hu moments,
+     * preparation, largest particle, EFD and classification
+     */
+    public static Callable<Object> classify(final String image, int pyramidLevel) throws IOException {
+        final LeafPipeline pipeline = new LeafPipeline();
+        pipeline.setPyramidLevel(pyramidLevel);
+        final KNNPlant classifier = new KNNPlant();
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                return pipeline.classify(image, classifier, K);
+            }
+        };
+    }
+
+    private static Polygon outline(String image) throws IOException {
+        LeafPipeline pipeline = new LeafPipeline();
+        ImagePlus imp = pipeline.open(image);
+        pipeline.preparation(imp);
+        LeafPipeline.Particle particle = pipeline.findLargestArea(imp);
+        if (particle == null) {
+            throw new IOException("No leaf found in " + image);
+        }
+        return particle.polygon;
+    }
+}
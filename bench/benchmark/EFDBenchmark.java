@@ -0,0 +1,49 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EFDBenchmark This class is the JMH benchmark of the elliptic Fourier
+ * descriptors of the bundled leaf, its outline resampled to several contour
+ * lengths, for several numbers of descriptors
+ *
+ * @author Karina Becker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class EFDBenchmark {
+    @Param({"128", "512", "2048"})
+    public int points;
+
+    @Param({"10", "30", "60"})
+    public int efdCount;
+
+    private Callable<Object> efd;
+
+    @Setup
+    public void setup() throws Exception {
+        efd = Fixtures.create("efd", "file/leaf.JPG", points, efdCount);
+    }
+
+    @Benchmark
+    public Object efd() throws Exception {
+        return efd.call();
+    }
+}
@@ -0,0 +1,36 @@
+package benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/**
+ * Fixtures This class gets the benchmarked operations from LeafFixtures in
+ * the default package, the only way a named package can reach it is reflection.
+ * It is only called from the setup, the benchmarks call the returned Callable.
+ *
+ * @author Karina Becker
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * @param name      name of the LeafFixtures method
+     * @param arguments its arguments
+     * @return the operation
+     */
+    @SuppressWarnings("unchecked")
+    static Callable<Object> create(String name, Object... arguments) throws Exception {
+        for (Method method : Class.forName("LeafFixtures").getMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == arguments.length) {
+                try {
+                    return (Callable<Object>) method.invoke(null, arguments);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No fixture " + name);
+    }
+}
@@ -0,0 +1,51 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KNNBenchmark This class is the JMH benchmark of the brute force k-NN on
+ * synthetic databases of 10^2 to 10^6 leaves, with double, float32 and int8 rows
+ * <p>
+ * The database is built once per fork, each call classifies the next of the
+ * synthetic queries.
+ *
+ * @author Karina Becker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class KNNBenchmark {
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"double", "float32", "int8"})
+    public String rows;
+
+    private Callable<Object> knn;
+
+    @Setup
+    public void setup() throws Exception {
+        knn = Fixtures.create("knn", size, rows);
+    }
+
+    @Benchmark
+    public Object classify() throws Exception {
+        return knn.call();
+    }
+}
@@ -0,0 +1,52 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MomentsBenchmark This class is the JMH benchmark of the Hu moments of the
+ * bundled images, from the pixels of the image and from the traced leaf outline
+ *
+ * @author Karina Becker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MomentsBenchmark {
+    @Param({"file/leaf.JPG", "file/10/iPAD2_C10_EX01.JPG", "file/11/iPAD2_C11_EX01.JPG", "file/12/iPAD2_C12_EX01.JPG"})
+    public String image;
+
+    private Callable<Object> pixels;
+    private Callable<Object> polygon;
+
+    @Setup
+    public void setup() throws Exception {
+        pixels = Fixtures.create("moments", image);
+        polygon = Fixtures.create("polygonMoments", image);
+    }
+
+    @Benchmark
+    public Object pixels() throws Exception {
+        return pixels.call();
+    }
+
+    @Benchmark
+    public Object polygon() throws Exception {
+        return polygon.call();
+    }
+}
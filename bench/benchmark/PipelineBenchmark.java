@@ -0,0 +1,57 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PipelineBenchmark This class is the JMH benchmark of the single image
+ * latency: the preparation of the decoded image (mask and largest particle,
+ * the copy of the image it works on included) and the whole pipeline from the
+ * file (open, Hu moments, preparation, largest particle, EFD and classification)
+ *
+ * @author Karina Becker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PipelineBenchmark {
+    @Param({"file/leaf.JPG", "file/10/iPAD2_C10_EX01.JPG"})
+    public String image;
+
+    @Param({"0", "2"})
+    public int pyramidLevel;
+
+    private Callable<Object> preparation;
+    private Callable<Object> classify;
+
+    @Setup
+    public void setup() throws Exception {
+        preparation = Fixtures.create("preparation", image, pyramidLevel);
+        classify = Fixtures.create("classify", image, pyramidLevel);
+    }
+
+    @Benchmark
+    public Object preparation() throws Exception {
+        return preparation.call();
+    }
+
+    @Benchmark
+    public Object classify() throws Exception {
+        return classify.call();
+    }
+}
@@ -0,0 +1,40 @@
+#!/bin/sh
+# Builds bench/benchmarks.jar, a runnable JMH jar with the benchmarks of bench/benchmark,
+# the classes of src/ and the libraries of lib/. Run it from the project directory,
+# the benchmarks read the bundled images and the reference database from file/:
+#   sh bench/build.sh
+#   java -jar bench/benchmarks.jar                       all benchmarks
+#   java -jar bench/benchmarks.jar KNN -p size=1000      JMH options, -h lists them
+# JMH is not kept in lib/: the jars are read from $JMH_LIB, or downloaded once
+# from Maven Central into bench/jmh/.
+set -e
+cd "$(dirname "$0")/.."
+
+JMH_VERSION=1.37
+JMH_LIB=${JMH_LIB:-bench/jmh}
+REPOSITORY=https://repo1.maven.org/maven2
+JARS="org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar
+org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar
+net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar
+org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar"
+
+mkdir -p "$JMH_LIB"
+for jar in $JARS; do
+    if [ ! -f "$JMH_LIB/$(basename "$jar")" ]; then
+        echo "Downloading $(basename "$jar")"
+        curl -fsSL -o "$JMH_LIB/$(basename "$jar")" "$REPOSITORY/$jar"
+    fi
+done
+
+OUT=bench/out
+rm -rf "$OUT"
+mkdir -p "$OUT"
+#the annotation processor generates the benchmark code and META-INF/BenchmarkList
+PROCESSOR_PATH=$(ls "$JMH_LIB"/*.jar | tr '\n' ':')
+javac -nowarn -encoding UTF-8 -cp "lib/*:$JMH_LIB/*" -processorpath "$PROCESSOR_PATH" -d "$OUT" src/*.java bench/*.java bench/benchmark/*.java
+(cd "$OUT" && for jar in ../../lib/*.jar "../../$JMH_LIB"/*.jar; do
+    case "$jar" in */jmh-generator-annprocess-*) continue ;; esac
+    jar xf "$jar"
+done && rm -rf META-INF/*.SF META-INF/*.DSA META-INF/*.RSA META-INF/MANIFEST.MF)
+jar cfe bench/benchmarks.jar org.openjdk.jmh.Main -C "$OUT" .
+echo "Built bench/benchmarks.jar"
@@ -0,0 +1,292 @@
+/**
+ * ComponentLabeler This class finds the largest 8-connected particle of a
+ * binary mask without labelling every pixel
+ * <p>
+ * The foreground of each row is stored as runs, runs of neighbouring rows
+ * that touch (diagonals included) are joined with union-find. Area and
+ * bounding box are summed per particle, only the largest one is kept.
+ * Its start point is the first pixel in raster order, the same point the
+ * ParticleAnalyzer records, so the Wand traces the same outline from it.
+ * findAll() keeps every particle of a minimum size instead, each with the
+ * mask of its bounding box, so later steps only read the pixels of their leaf.
+ * The run arrays grow as needed and are reused, one labeler per thread.
+ *
+ * @author Karina Becker
+ */
+
+import ij.process.ByteProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ComponentLabeler {
+    private int[] runStart = new int[1024];   // first x of the run
+    private int[] runEnd = new int[1024];     // last x of the run + 1
+    private int[] runRow = new int[1024];
+    private int[] parent = new int[1024];
+    private int runCount;
+
+    private int largest = -1;                 // root run of the largest particle
+    private int largestArea;
+    private int left, top, right, bottom;     // bounding box of the largest particle, inclusive
+
+    /**
+     * One particle found by findAll()
+     */
+    public static class Component {
+        public final int area;
+        public final int startX;          // first particle pixel in raster order
+        public final int startY;
+        public final Rectangle bounds;
+        public final ByteProcessor mask;  // particle pixels 255 within the bounding box
+
+        public Component(int area, int startX, int startY, Rectangle bounds, ByteProcessor mask) {
+            this.area = area;
+            this.startX = startX;
+            this.startY = startY;
+            this.bounds = bounds;
+            this.mask = mask;
+        }
+    }
+
+    /**
+     * Labels the particles of a mask and keeps the largest one
+     *
+     * @param pixels     mask
+     * @param width      mask width
+     * @param height     mask height
+     * @param foreground value of the particle pixels
+     * @return area of the largest particle, 0 if there is no foreground
+     */
+    public int findLargest(byte[] pixels, int width, int height, byte foreground) {
+        label(pixels, width, height, foreground);
+        if (runCount == 0) {
+            largest = -1;
+            largestArea = 0;
+            return 0;
+        }
+
+        //areas per root, the roots are the first run of their particle in raster order,
+        //afterwards every run points to its root directly
+        int[] areas = new int[runCount];
+        for (int i = 0; i < runCount; i++) {
+            parent[i] = find(i);
+            areas[parent[i]] += runEnd[i] - runStart[i];
+        }
+        largest = 0;
+        for (int i = 1; i < runCount; i++) {
+            if (areas[i] > areas[largest]) {
+                largest = i;
+            }
+        }
+        largestArea = areas[largest];
+        left = Integer.MAX_VALUE;
+        right = 0;
+        top = runRow[largest];
+        bottom = top;
+        for (int i = largest; i < runCount; i++) {
+            if (parent[i] == largest) {
+                left = Math.min(left, runStart[i]);
+                right = Math.max(right, runEnd[i] - 1);
+                bottom = runRow[i];
+            }
+        }
+        return largestArea;
+    }
+
+    /**
+     * Labels the particles of a mask and keeps all of a minimum size
+     *
+     * @param pixels     mask
+     * @param width      mask width
+     * @param height     mask height
+     * @param foreground value of the particle pixels
+     * @param minArea    minimum particle size in pixels
+     * @return particles in the raster order of their start points
+     */
+    public List<Component> findAll(byte[] pixels, int width, int height, byte foreground, double minArea) {
+        label(pixels, width, height, foreground);
+        int[] areas = new int[runCount];
+        for (int i = 0; i < runCount; i++) {
+            parent[i] = find(i);
+            areas[parent[i]] += runEnd[i] - runStart[i];
+        }
+        //bounding boxes of the kept particles: left, top, right, bottom, root run,
+        //a root comes before the other runs of its particle
+        int[] box = new int[runCount];
+        List<int[]> boxes = new ArrayList<int[]>();
+        for (int i = 0; i < runCount; i++) {
+            int root = parent[i];
+            if (areas[root] < minArea) {
+                continue;
+            }
+            if (root == i) {
+                box[i] = boxes.size();
+                boxes.add(new int[]{runStart[i], runRow[i], runEnd[i] - 1, runRow[i], i});
+            } else {
+                int[] b = boxes.get(box[root]);
+                b[0] = Math.min(b[0], runStart[i]);
+                b[2] = Math.max(b[2], runEnd[i] - 1);
+                b[3] = runRow[i];
+            }
+        }
+        List<Component> components = new ArrayList<Component>(boxes.size());
+        for (int[] b : boxes) {
+            Rectangle bounds = new Rectangle(b[0], b[1], b[2] - b[0] + 1, b[3] - b[1] + 1);
+            components.add(new Component(areas[b[4]], runStart[b[4]], runRow[b[4]], bounds,
+                    new ByteProcessor(bounds.width, bounds.height)));
+        }
+        for (int i = 0; i < runCount; i++) {
+            if (areas[parent[i]] >= minArea) {
+                Component component = components.get(box[parent[i]]);
+                byte[] mask = (byte[]) component.mask.getPixels();
+                int row = (runRow[i] - component.bounds.y) * component.bounds.width - component.bounds.x;
+                Arrays.fill(mask, row + runStart[i], row + runEnd[i], (byte) 255);
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Stores the foreground of every row as runs and joins touching runs
+     */
+    private void label(byte[] pixels, int width, int height, byte foreground) {
+        runCount = 0;
+        int previousFirst = 0;  // runs of the previous row
+        int previousEnd = 0;
+        for (int y = 0; y < height; y++) {
+            int first = runCount;
+            int row = y * width;
+            int x = 0;
+            while (x < width) {
+                while (x < width && pixels[row + x] != foreground) {
+                    x++;
+                }
+                if (x == width) {
+                    break;
+                }
+                int start = x;
+                while (x < width && pixels[row + x] == foreground) {
+                    x++;
+                }
+                addRun(start, x, y);
+            }
+            //join with the runs of the row above that touch, diagonal neighbours included
+            int j = previousFirst;
+            for (int i = first; i < runCount; i++) {
+                while (j < previousEnd && runEnd[j] < runStart[i]) {
+                    j++;
+                }
+                for (int k = j; k < previousEnd && runStart[k] <= runEnd[i]; k++) {
+                    union(i, k);
+                }
+            }
+            previousFirst = first;
+            previousEnd = runCount;
+        }
+    }
+
+    /**
+     * @return area of the largest particle in pixels
+     */
+    public int getArea() {
+        return largestArea;
+    }
+
+    /**
+     * @return x of the first particle pixel in raster order
+     */
+    public int getStartX() {
+        return runStart[largest];
+    }
+
+    /**
+     * @return y of the first particle pixel in raster order
+     */
+    public int getStartY() {
+        return runRow[largest];
+    }
+
+    /**
+     * @return bounding box of the largest particle
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    /**
+     * Mask of the largest particle within its bounding box
+     *
+     * @return mask with the particle pixels 255
+     */
+    public ByteProcessor getMask() {
+        int width = right - left + 1;
+        byte[] mask = new byte[width * (bottom - top + 1)];
+        for (int i = largest; i < runCount; i++) {
+            if (parent[i] == largest) {
+                int row = (runRow[i] - top) * width - left;
+                Arrays.fill(mask, row + runStart[i], row + runEnd[i], (byte) 255);
+            }
+        }
+        return new ByteProcessor(width, bottom - top + 1, mask);
+    }
+
+    /**
+     * Clears all pixels but the ones of the largest particle
+     *
+     * @param pixels mask the particles were found in
+     * @param width  mask width
+     * @param value  value written for the particle pixels
+     */
+    public void keepLargest(byte[] pixels, int width, byte value) {
+        Arrays.fill(pixels, (byte) 0);
+        for (int i = largest; i < runCount; i++) {
+            if (parent[i] == largest) {
+                int row = runRow[i] * width;
+                Arrays.fill(pixels, row + runStart[i], row + runEnd[i], value);
+            }
+        }
+    }
+
+    private void addRun(int start, int end, int y) {
+        if (runCount == parent.length) {
+            int capacity = 2 * runCount;
+            runStart = Arrays.copyOf(runStart, capacity);
+            runEnd = Arrays.copyOf(runEnd, capacity);
+            runRow = Arrays.copyOf(runRow, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+        }
+        runStart[runCount] = start;
+        runEnd[runCount] = end;
+        runRow[runCount] = y;
+        parent[runCount] = runCount;
+        runCount++;
+    }
+
+    /**
+     * Root of a run with path halving, afterwards the parent of every run
+     * visited so far is closer to its root
+     */
+    private int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Joins two particles, the root with the smaller index stays root
+     */
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * ContourResampler This class resamples a closed contour to a fixed number of
+ * points that are evenly spaced by arc length
+ * <p>
+ * The polygons from the Particle Analyser have one vertex per direction
+ * change, so their number grows with image resolution and their spacing is
+ * uneven. Resampling before the EFD bounds its cost to O(n * nFD) and gives
+ * every part of the outline the same weight.
+ *
+ * @author Karina Becker
+ */
+
+import java.awt.Polygon;
+import java.util.Arrays;
+
+public class ContourResampler {
+
+    /**
+     * Resamples a closed polygon
+     *
+     * @param polygon closed contour, the last vertex connects to the first
+     * @param n       number of output points
+     * @return xy double array, xy[0] x coordinates and xy[1] y coordinates
+     */
+    public static double[][] resample(Polygon polygon, int n) {
+        return resample(polygon.xpoints, polygon.ypoints, polygon.npoints, n);
+    }
+
+    /**
+     * Resamples a closed contour given by its vertices
+     *
+     * @param xPoints x coordinates of the vertices
+     * @param yPoints y coordinates of the vertices
+     * @param count   number of vertices
+     * @param n       number of output points
+     * @return xy double array, xy[0] x coordinates and xy[1] y coordinates
+     */
+    public static double[][] resample(int[] xPoints, int[] yPoints, int count, int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Number of contour points must be positive: " + n);
+        }
+        double[] x = new double[n];
+        double[] y = new double[n];
+        if (count == 0) {
+            return new double[][]{x, y};
+        }
+
+        //Cumulative arc length at the start of each segment
+        double[] arc = new double[count + 1];
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            double dx = xPoints[j] - xPoints[i];
+            double dy = yPoints[j] - yPoints[i];
+            arc[i + 1] = arc[i] + Math.sqrt(dx * dx + dy * dy);
+        }
+        double length = arc[count];
+        if (length == 0.0) {
+            //Degenerate contour, all vertices in one place
+            Arrays.fill(x, xPoints[0]);
+            Arrays.fill(y, yPoints[0]);
+            return new double[][]{x, y};
+        }
+
+        //Walk along the segments, output points are at arc length i * step
+        double step = length / n;
+        int segment = 0;
+        for (int i = 0; i < n; i++) {
+            double s = i * step;
+            while (segment < count - 1 && arc[segment + 1] <= s) {
+                segment++;
+            }
+            int j = (segment + 1) % count;
+            double segmentLength = arc[segment + 1] - arc[segment];
+            double f = segmentLength > 0.0 ? (s - arc[segment]) / segmentLength : 0.0;
+            x[i] = xPoints[segment] + f * (xPoints[j] - xPoints[segment]);
+            y[i] = yPoints[segment] + f * (yPoints[j] - yPoints[segment]);
+        }
+        return new double[][]{x, y};
+    }
+}
@@ -64,25 +64,34 @@ public class EFD {
         bx = new double[nFD];
         by = new double[nFD];
 
-        //Preconfigure some values
-        double t = 2.0 * Math.PI / m;
-        double p = 0.0;
+        //Preconfigure some values, angles k * t * i are looked up at index (k * i) mod m
+        TwiddleTable table = TwiddleTable.forLength(m);
+        double[] cos = table.cos;
+        double[] sin = table.sin;
         double twoOverM = 2.0 / m;
         //Step through each FD
         for (int k = 0; k < nFD; k++) {
+            int step = k % m;
+            int index = 0;
+            double sumAx = 0.0, sumBx = 0.0, sumAy = 0.0, sumBy = 0.0;
             //And for each point
             for (int i = 0; i < m; i++) {
-                p = k * t * i;
-                ax[k] += x[i] * Math.cos(p);
-                bx[k] += x[i] * Math.sin(p);
-                ay[k] += y[i] * Math.cos(p);
-                by[k] += y[i] * Math.sin(p);
+                double c = cos[index];
+                double s = sin[index];
+                sumAx += x[i] * c;
+                sumBx += x[i] * s;
+                sumAy += y[i] * c;
+                sumBy += y[i] * s;
+                index += step;
+                if (index >= m) {
+                    index -= m;
+                }
             }//i-loop through the number of points
 
-            ax[k] *= twoOverM;
-            bx[k] *= twoOverM;
-            ay[k] *= twoOverM;
-            by[k] *= twoOverM;
+            ax[k] = sumAx * twoOverM;
+            bx[k] = sumBx * twoOverM;
+            ay[k] = sumAy * twoOverM;
+            by[k] = sumBy * twoOverM;
         }//k-loop through the number of coeffs
 
         //Compute the elliptic fourier descriptors as per REF2
@@ -120,22 +129,28 @@ public class EFD {
      * input polygon
      */
     public int[][] createPolygonInt() {
-        double p = 0.0;
-        double[][] xy = new double[m][2];
         int[][] ixy = new int[m][2];
-        double t = 2.0 * Math.PI / m;
+        TwiddleTable table = TwiddleTable.forLength(m);
+        double[] cos = table.cos;
+        double[] sin = table.sin;
         for (int i = 0; i < m; i++) {
-            xy[i][0] = ax[0] / 2.0;
-            xy[i][1] = ay[0] / 2.0;
+            double px = ax[0] / 2.0;
+            double py = ay[0] / 2.0;
 
+            int step = i % m;
+            int index = step;
             for (int k = 1; k < nFD; k++) {
-                p = t * k * i;
-                xy[i][0] += ax[k] * Math.cos(p) + bx[k] * Math.sin(p);
-                xy[i][1] += ay[k] * Math.cos(p) + by[k] * Math.sin(p);
-                ixy[i][0] = (int) xy[i][0];
-                ixy[i][1] = (int) xy[i][1];
-
+                double c = cos[index];
+                double s = sin[index];
+                px += ax[k] * c + bx[k] * s;
+                py += ay[k] * c + by[k] * s;
+                index += step;
+                if (index >= m) {
+                    index -= m;
+                }
             } // k-loop through the FDs
+            ixy[i][0] = (int) px;
+            ixy[i][1] = (int) py;
         }// i-loop through the points
         return ixy;
     }// createPolygon
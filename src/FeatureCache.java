@@ -0,0 +1,258 @@
+/**
+ * FeatureCache This class keeps the features of already processed images,
+ * keyed by a hash of the image bytes and the extraction parameters
+ * <p>
+ * The entries are held in least recently used order and the oldest one is
+ * dropped when the cache is full. With a backing file every new entry is
+ * appended to it and the file is read back when the cache is opened again,
+ * a truncated last record (e.g. after a crash) is ignored. The file is
+ * rewritten with the kept entries when it is opened with more records than
+ * the cache keeps, and while it is in use as soon as the dropped and replaced
+ * records outnumber the cache size, so the file stays below twice the size of
+ * a full cache. The outline polygon is not cached, cached features have no contour.
+ * All methods are synchronized, one cache can be shared by all threads.
+ *
+ * @author Karina Becker
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FeatureCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int MAGIC = 0x4C464341; // "LFCA"
+    private static final int VERSION = 1;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final LinkedHashMap<String, LeafFeatures> entries;
+    private final int maxEntries;
+    private final File file;            // null if the cache is in memory only
+    private DataOutputStream out;
+    private int records;                // records in the backing file
+    private int hits;
+    private int misses;
+
+    /**
+     * Cache in memory only
+     *
+     * @param maxEntries maximum number of images kept
+     */
+    public FeatureCache(int maxEntries) {
+        this.entries = createMap(maxEntries);
+        this.maxEntries = maxEntries;
+        this.file = null;
+    }
+
+    /**
+     * Cache with a backing file, the entries of the file are loaded
+     *
+     * @param filePath   path of the backing file, created if it does not exist
+     * @param maxEntries maximum number of images kept
+     * @throws IOException if the file cannot be read or written
+     */
+    public FeatureCache(String filePath, int maxEntries) throws IOException {
+        this.entries = createMap(maxEntries);
+        this.maxEntries = maxEntries;
+        this.file = new File(filePath);
+        //a truncated record has to be cut off before new records are appended
+        boolean complete = !file.exists() || load();
+        if (!file.exists() || !complete || records > entries.size()) {
+            rewrite();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static LinkedHashMap<String, LeafFeatures> createMap(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        //access order: the eldest entry is the least recently used one
+        return new LinkedHashMap<String, LeafFeatures>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LeafFeatures> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Key of an image: SHA-256 of the image bytes and the extraction parameters
+     *
+     * @param image      image file bytes
+     * @param parameters description of the extraction parameters, see LeafPipeline.getParameterKey()
+     * @return key as hex string
+     */
+    public static String key(byte[] image, String parameters) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        digest.update(image);
+        byte[] hash = digest.digest(parameters.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param key key of the image
+     * @return cached features, null if the image is not cached
+     */
+    public synchronized LeafFeatures get(String key) {
+        LeafFeatures features = entries.get(key);
+        if (features == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return features;
+    }
+
+    /**
+     * Adds the features of an image, with a backing file they are appended to it
+     *
+     * @param key      key of the image
+     * @param features extracted features, the contour is not kept
+     * @throws IOException if the backing file cannot be written
+     */
+    public synchronized void put(String key, LeafFeatures features) throws IOException {
+        LeafFeatures entry = features.contour == null ? features
+                : new LeafFeatures(null, features.area, features.circularity, features.aspectRatio,
+                features.roundness, features.solidity, features.efd, features.hu);
+        entries.put(key, entry);
+        if (out != null) {
+            writeRecord(out, key, entry);
+            out.flush();
+            records++;
+            if (records - entries.size() > maxEntries) {
+                //more dead records than the cache can hold, keep only the live ones
+                out.close();
+                out = null;
+                rewrite();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Closes the backing file, the cache stays usable in memory
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Reads all records of the backing file, later records replace earlier ones
+     *
+     * @return false if the last record is truncated
+     */
+    private boolean load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a feature cache of version " + VERSION + ": " + file);
+            }
+            while (in.available() > 0) {
+                String key = in.readUTF();
+                double area = in.readDouble();
+                double circularity = in.readDouble();
+                double aspectRatio = in.readDouble();
+                double roundness = in.readDouble();
+                double solidity = in.readDouble();
+                double[] efd = readArray(in);
+                double[] hu = readArray(in);
+                entries.put(key, new LeafFeatures(null, area, circularity, aspectRatio, roundness, solidity, efd, hu));
+                records++;
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the kept entries to a new file that replaces the backing file,
+     * least recently used first so the order survives reloading
+     */
+    private void rewrite() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            tempOut.writeInt(MAGIC);
+            tempOut.writeInt(VERSION);
+            for (Map.Entry<String, LeafFeatures> entry : entries.entrySet()) {
+                writeRecord(tempOut, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            tempOut.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = entries.size();
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, LeafFeatures features) throws IOException {
+        out.writeUTF(key);
+        out.writeDouble(features.area);
+        out.writeDouble(features.circularity);
+        out.writeDouble(features.aspectRatio);
+        out.writeDouble(features.roundness);
+        out.writeDouble(features.solidity);
+        writeArray(out, features.efd);
+        writeArray(out, features.hu);
+    }
+
+    private static void writeArray(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static double[] readArray(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+}
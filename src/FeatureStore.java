@@ -0,0 +1,405 @@
+/**
+ * FeatureStore This class implements a compact binary, column oriented store
+ * for the reference database that is opened by memory mapping the file
+ * <p>
+ * Layout (little endian):
+ * header of 32 bytes: magic, version, number of rows, number of EFDs, number of Hu moments
+ * int columns: species ids, sample numbers (padded to 8 bytes)
+ * double columns: area, circularity, aspect ratio, roundness, solidity
+ * double matrices, row-major: EFDs, Hu moments
+ * species names: number of names, then per id its length and UTF-8 bytes
+ * <p>
+ * Opening a store only maps the file, nothing is parsed. KNNPlant scans the
+ * EFD and Hu matrices in place through getEfd() and getHu(), so the
+ * descriptors stay in the page cache and are not copied to the Java heap.
+ * A store can also be built from the csv database in a direct buffer outside
+ * the heap, so the classifier reads both formats the same way. The converter
+ * from the csv database is in main().
+ *
+ * @author Karina Becker
+ */
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.opencsv.CSVReader;
+
+public class FeatureStore {
+    public static final String EXTENSION = ".bin";
+    private static final int MAGIC = 0x4C454146; // "LEAF"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+    private static final int SHAPE_COLUMNS = 5;  // area, circularity, aspect ratio, roundness, solidity
+    private static final String[] CSV_COLUMNS = {"Species", "Number", "Area", "Circularity", "Aspect Ratio",
+            "Roundness", "Solidity"};   // csv columns read by name
+    private static final int ASPECT_RATIO_COLUMN = 4; // index in CSV_COLUMNS of the optional column
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int rows;
+    private final int efdLength;
+    private final int huLength;
+    private final String[] speciesNames; // by species id
+    private final IntBuffer species;
+    private final IntBuffer numbers;
+    private final DoubleBuffer shape;   // SHAPE_COLUMNS columns of length rows
+    private final DoubleBuffer efd;
+    private final DoubleBuffer hu;
+
+    private FeatureStore(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a feature store of version " + VERSION);
+        }
+        rows = buffer.getInt(8);
+        efdLength = buffer.getInt(12);
+        huLength = buffer.getInt(16);
+        int[] offsets = offsets(rows, efdLength, huLength);
+        if (buffer.capacity() < offsets[5]) {
+            throw new IOException("Truncated feature store");
+        }
+        species = view(buffer, offsets[0]).asIntBuffer();
+        numbers = view(buffer, offsets[1]).asIntBuffer();
+        shape = view(buffer, offsets[2]).asDoubleBuffer();
+        efd = view(buffer, offsets[3]).asDoubleBuffer();
+        hu = view(buffer, offsets[4]).asDoubleBuffer();
+        speciesNames = readNames(view(buffer, offsets[5]));
+        for (int row = 0; row < rows; row++) {
+            int id = species.get(row);
+            if (id < 0 || id >= speciesNames.length) {
+                throw new IOException("Unknown species id " + id + " in row " + row);
+            }
+        }
+    }
+
+    private static String[] readNames(ByteBuffer table) throws IOException {
+        if (table.remaining() < 4) {
+            throw new IOException("Truncated feature store");
+        }
+        String[] names = new String[table.getInt()];
+        for (int i = 0; i < names.length; i++) {
+            if (table.remaining() < 4 || table.remaining() - 4 < table.getInt(table.position())) {
+                throw new IOException("Truncated feature store");
+            }
+            byte[] bytes = new byte[table.getInt()];
+            table.get(bytes);
+            names[i] = new String(bytes, UTF8);
+        }
+        return names;
+    }
+
+    /**
+     * Opens a store, binary files are memory mapped, csv files are converted into a direct buffer
+     *
+     * @param filePath path of a binary store or csv database
+     * @return opened store
+     * @throws IOException if the file cannot be read
+     */
+    public static FeatureStore open(String filePath) throws IOException {
+        if (!filePath.endsWith(EXTENSION)) {
+            return fromSamples(readCsv(filePath));
+        }
+        RandomAccessFile file = new RandomAccessFile(filePath, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            //The mapping stays valid after the channel is closed
+            return new FeatureStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Builds a store in a direct buffer
+     *
+     * @param samples leaves of the database, all with the same number of EFDs and Hu moments
+     * @return store holding the samples
+     * @throws IOException if the samples do not form a valid store
+     */
+    public static FeatureStore fromSamples(List<LeafSample> samples) throws IOException {
+        return new FeatureStore(encode(samples));
+    }
+
+    /**
+     * Writes samples to a binary store file
+     *
+     * @param filePath path of the binary store
+     * @param samples  leaves of the database, all with the same number of EFDs and Hu moments
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(String filePath, List<LeafSample> samples) throws IOException {
+        ByteBuffer buffer = encode(samples);
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the csv database, columns are found by their header names:
+     * Species, Number, Area, Circularity, the optional Aspect Ratio (NaN
+     * without it), Roundness, Solidity and the EFD and Hu columns in header order
+     *
+     * @param filePath path of the csv database
+     * @return samples in file order
+     * @throws IOException if the file cannot be read, a column is missing or a row is malformed
+     */
+    public static List<LeafSample> readCsv(String filePath) throws IOException {
+        List<LeafSample> samples = new ArrayList<LeafSample>();
+        CSVReader reader = new CSVReader(new FileReader(filePath), ',', '"', 0);
+        try {
+            String[] header = reader.readNext();
+            if (header == null) {
+                throw new IOException("Empty database " + filePath);
+            }
+            int[] columns = new int[CSV_COLUMNS.length];
+            Arrays.fill(columns, -1);
+            int[] efdColumns = new int[header.length];
+            int[] huColumns = new int[header.length];
+            int efdCount = 0;
+            int huCount = 0;
+            for (int c = 0; c < header.length; c++) {
+                String column = header[c].trim();
+                if (column.startsWith("EFD")) {
+                    efdColumns[efdCount++] = c;
+                } else if (column.startsWith("Hu")) {
+                    huColumns[huCount++] = c;
+                } else {
+                    for (int i = 0; i < CSV_COLUMNS.length; i++) {
+                        if (column.equals(CSV_COLUMNS[i])) {
+                            columns[i] = c;
+                        }
+                    }
+                }
+            }
+            int used = 0;
+            for (int i = 0; i < CSV_COLUMNS.length; i++) {
+                if (columns[i] < 0 && i != ASPECT_RATIO_COLUMN) {
+                    throw new IOException("Database " + filePath + " has no column " + CSV_COLUMNS[i]);
+                }
+                used = Math.max(used, columns[i] + 1);
+            }
+            if (efdCount > 0) {
+                used = Math.max(used, efdColumns[efdCount - 1] + 1);
+            }
+            if (huCount > 0) {
+                used = Math.max(used, huColumns[huCount - 1] + 1);
+            }
+
+            String[] nextLine;
+            int line = 1;
+            while ((nextLine = reader.readNext()) != null) {
+                line++;
+                if (nextLine.length < used) {
+                    throw new IOException("Row " + line + " of " + filePath + " has " + nextLine.length
+                            + " columns, expected " + used);
+                }
+                try {
+                    double[] efd = new double[efdCount];
+                    for (int i = 0; i < efdCount; ++i) {
+                        efd[i] = Double.parseDouble(nextLine[efdColumns[i]]);
+                    }
+                    double[] hu = new double[huCount];
+                    for (int i = 0; i < huCount; ++i) {
+                        hu[i] = Double.parseDouble(nextLine[huColumns[i]]);
+                    }
+                    double aspectRatio = columns[ASPECT_RATIO_COLUMN] < 0 ? Double.NaN
+                            : Double.parseDouble(nextLine[columns[ASPECT_RATIO_COLUMN]]);
+                    samples.add(new LeafSample(nextLine[columns[0]].trim(), Integer.parseInt(nextLine[columns[1]].trim()),
+                            Double.parseDouble(nextLine[columns[2]]), Double.parseDouble(nextLine[columns[3]]),
+                            aspectRatio, Double.parseDouble(nextLine[columns[5]]),
+                            Double.parseDouble(nextLine[columns[6]]), efd, hu));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Row " + line + " of " + filePath + ": " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return samples;
+    }
+
+    /**
+     * Byte offsets of the columns: species, numbers, shape, efd, hu and the species names
+     */
+    private static int[] offsets(int rows, int efdLength, int huLength) {
+        long species = HEADER_BYTES;
+        long numbers = species + 4L * rows;
+        long shape = (numbers + 4L * rows + 7) & ~7L;
+        long efd = shape + 8L * SHAPE_COLUMNS * rows;
+        long hu = efd + 8L * rows * efdLength;
+        long end = hu + 8L * rows * huLength;
+        if (end > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Feature store larger than 2 GB");
+        }
+        return new int[]{(int) species, (int) numbers, (int) shape, (int) efd, (int) hu, (int) end};
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer, int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer encode(List<LeafSample> samples) throws IOException {
+        int rows = samples.size();
+        int efdLength = rows > 0 ? samples.get(0).efd.length : 0;
+        int huLength = rows > 0 ? samples.get(0).hu.length : 0;
+        int[] offsets = offsets(rows, efdLength, huLength);
+        //species names get ids in the order of their first row
+        Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+        List<byte[]> names = new ArrayList<byte[]>();
+        int tableBytes = 4;
+        for (LeafSample sample : samples) {
+            if (!ids.containsKey(sample.species)) {
+                ids.put(sample.species, ids.size());
+                byte[] name = sample.species.getBytes(UTF8);
+                names.add(name);
+                tableBytes += 4 + name.length;
+            }
+        }
+        if ((long) offsets[5] + tableBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Feature store larger than 2 GB");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(offsets[5] + tableBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, rows);
+        buffer.putInt(12, efdLength);
+        buffer.putInt(16, huLength);
+        for (int row = 0; row < rows; row++) {
+            LeafSample sample = samples.get(row);
+            if (sample.efd.length != efdLength || sample.hu.length != huLength) {
+                throw new IOException("Sample " + row + " has a different number of descriptors");
+            }
+            buffer.putInt(offsets[0] + 4 * row, ids.get(sample.species));
+            buffer.putInt(offsets[1] + 4 * row, sample.number);
+            double[] shape = {sample.area, sample.circularity, sample.aspectRatio, sample.roundness, sample.solidity};
+            for (int c = 0; c < SHAPE_COLUMNS; c++) {
+                buffer.putDouble(offsets[2] + 8 * (c * rows + row), shape[c]);
+            }
+            for (int i = 0; i < efdLength; i++) {
+                buffer.putDouble(offsets[3] + 8 * (row * efdLength + i), sample.efd[i]);
+            }
+            for (int i = 0; i < huLength; i++) {
+                buffer.putDouble(offsets[4] + 8 * (row * huLength + i), sample.hu[i]);
+            }
+        }
+        buffer.position(offsets[5]);
+        buffer.putInt(names.size());
+        for (byte[] name : names) {
+            buffer.putInt(name.length);
+            buffer.put(name);
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public int getEfdLength() {
+        return efdLength;
+    }
+
+    public int getHuLength() {
+        return huLength;
+    }
+
+    public String getSpecies(int row) {
+        return speciesNames[species.get(row)];
+    }
+
+    /**
+     * All EFDs in place, row-major, getEfdLength() values per row.
+     * Read them with absolute gets, which several threads can share
+     *
+     * @return read-only view of the EFD matrix
+     */
+    public DoubleBuffer getEfd() {
+        return matrix(efd, rows * efdLength);
+    }
+
+    /**
+     * All Hu moments in place, row-major, getHuLength() values per row
+     *
+     * @return read-only view of the Hu moment matrix
+     */
+    public DoubleBuffer getHu() {
+        return matrix(hu, rows * huLength);
+    }
+
+    private static DoubleBuffer matrix(DoubleBuffer column, int length) {
+        DoubleBuffer view = column.asReadOnlyBuffer();
+        view.limit(length);
+        return view.slice();
+    }
+
+    /**
+     * Copies all EFDs into a row-major array
+     *
+     * @param dst array of at least size() * getEfdLength() values
+     */
+    public void readEfd(double[] dst) {
+        efd.duplicate().get(dst, 0, rows * efdLength);
+    }
+
+    /**
+     * Copies all Hu moments into a row-major array
+     *
+     * @param dst array of at least size() * getHuLength() values
+     */
+    public void readHu(double[] dst) {
+        hu.duplicate().get(dst, 0, rows * huLength);
+    }
+
+    /**
+     * Reads one row of the store
+     *
+     * @param row index of the leaf
+     * @return sample with copies of the stored values
+     */
+    public LeafSample get(int row) {
+        double[] efdRow = new double[efdLength];
+        double[] huRow = new double[huLength];
+        DoubleBuffer e = efd.duplicate();
+        e.position(row * efdLength);
+        e.get(efdRow);
+        DoubleBuffer h = hu.duplicate();
+        h.position(row * huLength);
+        h.get(huRow);
+        return new LeafSample(getSpecies(row), numbers.get(row),
+                shape.get(row), shape.get(rows + row), shape.get(2 * rows + row),
+                shape.get(3 * rows + row), shape.get(4 * rows + row), efdRow, huRow);
+    }
+
+    /**
+     * Converts the csv database to a binary store
+     * arguments: csv input path and binary output path
+     */
+    public static void main(String[] args) throws IOException {
+        String csvPath = args.length > 0 ? args[0] : KNNPlant.DEFAULT_DATABASE;
+        String binPath = args.length > 1 ? args[1] : csvPath.replaceAll("\\.csv$", "") + EXTENSION;
+        List<LeafSample> samples = readCsv(csvPath);
+        write(binPath, samples);
+        System.out.println("Converted " + samples.size() + " leaves from " + csvPath + " to " + binPath);
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * HistogramMBean This interface exposes a Histogram through JMX,
+ * stage latencies are in nanoseconds
+ *
+ * @author Karina Becker
+ */
+
+public interface HistogramMBean {
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getPercentile50();
+
+    long getPercentile90();
+
+    long getPercentile99();
+
+    void reset();
+}
@@ -0,0 +1,496 @@
+/**
+ * IVFIndex This class is an approximate nearest neighbour index over the
+ * z-score standardised EFDs and Hu moments of the reference database, an
+ * inverted file with product quantization (IVF-PQ)
+ * <p>
+ * The standardised rows are clustered with k-means into lists around coarse
+ * centroids. The residual of a row, its difference to the centroid of its
+ * list, is split into subspaces of a few columns each; every subspace has its
+ * own codebook of up to 256 centroids and a row is stored as one byte per
+ * subspace. A search compares the query with all coarse centroids, probes the
+ * closest lists only and sums up one table entry per subspace for every row
+ * of a probed list. The squared distance of query q to row c + r, with c the
+ * centroid and r the codeword residual, is |q - c|^2 + (|r|^2 + 2 c.r) - 2 q.r:
+ * the middle term is stored per list and codeword when the index is built,
+ * the last one is computed once per query, so the table of a list is one
+ * addition per codeword. The best candidates are re-ranked exactly in
+ * double precision from the original descriptors, like QuantizedMatrix does.
+ * <p>
+ * Knobs: more lists make a list shorter and the coarse search longer, more
+ * probes raise the recall and the latency, more subspaces and a larger
+ * codebook make the codes more accurate and the tables larger.
+ *
+ * @author Karina Becker
+ */
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class IVFIndex {
+    public static final int DEFAULT_PROBES = 8;
+    public static final int DEFAULT_CODEBOOK_SIZE = 256;
+    private static final int SUBSPACE_COLUMNS = 3;      // columns per subspace by default
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final int TRAINING_POINTS = 32;      // training rows per k-means centroid
+    private static final int RERANK_FACTOR = 4;         // candidates per requested neighbour
+    private static final int MIN_CANDIDATES = 64;
+    private static final int CHECK_BLOCK = 8;           // columns between two checks against the closest centroid
+    private static final int BAND_ROWS = 1024;          // rows per parallel task
+    private static final long SEED = 42;                // same index for the same database
+
+    private final DoubleBuffer efdDatabase; // original descriptors for the exact re-ranking
+    private final DoubleBuffer huDatabase;
+    private final int efdLength;
+    private final int huLength;
+    private final int rows;
+    private final int columns;
+    private final double[] mean;         // per column
+    private final double[] inverseDeviation;
+    private final int lists;
+    private final float[] centroids;     // lists * columns, coarse centroids
+    private final int[] listStart;       // first position of every list, lists + 1 entries
+    private final int[] listRows;        // database row at every position, grouped by list
+    private final int subspaces;
+    private final int[] subspaceStart;   // first column of every subspace, subspaces + 1 entries
+    private final int codebookSize;
+    private final float[][] codebooks;   // per subspace codebookSize codewords of its columns
+    private final float[] listTerms;     // per list, subspace and codeword |r|^2 + 2 c.r
+    private final byte[] codes;          // subspaces codes per position
+
+    private interface RowPass {
+        void run(int from, int to);
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowPass pass;
+        private final int from;
+        private final int to;
+
+        BandTask(RowPass pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BAND_ROWS) {
+                pass.run(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BandTask(pass, from, middle), new BandTask(pass, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Trains the centroids and codebooks and encodes all rows,
+     * the buffers are kept for re-ranking and must not change
+     *
+     * @param efdDatabase  row-major EFDs
+     * @param efdLength    EFDs per row
+     * @param huDatabase   row-major Hu moments
+     * @param huLength     Hu moments per row
+     * @param rows         number of rows, at least 1
+     * @param lists        number of coarse lists, 0 for the square root of the rows
+     * @param subspaces    number of subspaces, 0 for one per 3 columns
+     * @param codebookSize codewords per subspace, 2 to 256
+     */
+    public IVFIndex(DoubleBuffer efdDatabase, int efdLength, DoubleBuffer huDatabase, int huLength, int rows,
+                    int lists, int subspaces, int codebookSize) {
+        int columns = efdLength + huLength;
+        if (rows < 1) {
+            throw new IllegalArgumentException("The index needs at least one row");
+        }
+        if (lists < 0 || subspaces < 0 || subspaces > columns) {
+            throw new IllegalArgumentException("Expected 0 or more lists and 0 to " + columns + " subspaces");
+        }
+        if (codebookSize < 2 || codebookSize > 256) {
+            throw new IllegalArgumentException("Codebook size must be 2 to 256");
+        }
+        this.efdDatabase = efdDatabase;
+        this.huDatabase = huDatabase;
+        this.efdLength = efdLength;
+        this.huLength = huLength;
+        this.rows = rows;
+        this.columns = columns;
+        this.lists = Math.min(rows, lists > 0 ? lists : (int) Math.max(1, Math.round(Math.sqrt(rows))));
+        this.subspaces = subspaces > 0 ? subspaces : (columns + SUBSPACE_COLUMNS - 1) / SUBSPACE_COLUMNS;
+        subspaceStart = new int[this.subspaces + 1];
+        for (int m = 0; m <= this.subspaces; m++) {
+            subspaceStart[m] = m * columns / this.subspaces;
+        }
+
+        double[][] statistics = QuantizedMatrix.statistics(efdDatabase, efdLength, huDatabase, huLength, rows);
+        mean = statistics[0];
+        inverseDeviation = statistics[1];
+        final float[] standardised = new float[rows * columns];
+        double[] row = new double[columns];
+        for (int r = 0; r < rows; r++) {
+            QuantizedMatrix.readRow(efdDatabase, efdLength, huDatabase, huLength, r, row);
+            for (int c = 0; c < columns; c++) {
+                standardised[r * columns + c] = (float) ((row[c] - mean[c]) * inverseDeviation[c]);
+            }
+        }
+
+        //coarse centroids from a random sample, then every row goes to its closest centroid
+        Random random = new Random(SEED);
+        int[] sample = sample(rows, this.lists * TRAINING_POINTS, random);
+        centroids = kmeans(gather(standardised, columns, sample, 0, columns), sample.length, columns,
+                this.lists, random);
+        final int[] assignment = new int[rows];
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                for (int r = from; r < to; r++) {
+                    assignment[r] = nearest(standardised, r * IVFIndex.this.columns, centroids,
+                            IVFIndex.this.lists, IVFIndex.this.columns);
+                }
+            }
+        }, rows);
+        listStart = new int[this.lists + 1];
+        for (int r = 0; r < rows; r++) {
+            listStart[assignment[r] + 1]++;
+        }
+        for (int l = 0; l < this.lists; l++) {
+            listStart[l + 1] += listStart[l];
+        }
+        listRows = new int[rows];
+        int[] next = listStart.clone();
+        for (int r = 0; r < rows; r++) {
+            listRows[next[assignment[r]]++] = r;
+        }
+
+        //residuals replace the standardised rows, the codebooks are trained on a sample of them
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0, offset = assignment[r] * columns; c < columns; c++) {
+                standardised[r * columns + c] -= centroids[offset + c];
+            }
+        }
+        sample = sample(rows, codebookSize * TRAINING_POINTS, random);
+        this.codebookSize = Math.min(codebookSize, sample.length);
+        codebooks = new float[this.subspaces][];
+        for (int m = 0; m < this.subspaces; m++) {
+            int width = subspaceStart[m + 1] - subspaceStart[m];
+            codebooks[m] = kmeans(gather(standardised, columns, sample, subspaceStart[m], width), sample.length,
+                    width, this.codebookSize, random);
+        }
+        listTerms = new float[this.lists * this.subspaces * this.codebookSize];
+        for (int l = 0; l < this.lists; l++) {
+            for (int m = 0; m < this.subspaces; m++) {
+                int width = subspaceStart[m + 1] - subspaceStart[m];
+                for (int j = 0; j < this.codebookSize; j++) {
+                    float term = 0f;
+                    for (int c = 0; c < width; c++) {
+                        float r = codebooks[m][j * width + c];
+                        term += r * r + 2 * centroids[l * columns + subspaceStart[m] + c] * r;
+                    }
+                    listTerms[(l * this.subspaces + m) * this.codebookSize + j] = term;
+                }
+            }
+        }
+        codes = new byte[rows * this.subspaces];
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                float[] residual = new float[IVFIndex.this.columns];
+                for (int position = from; position < to; position++) {
+                    System.arraycopy(standardised, listRows[position] * residual.length, residual, 0, residual.length);
+                    for (int m = 0; m < IVFIndex.this.subspaces; m++) {
+                        int width = subspaceStart[m + 1] - subspaceStart[m];
+                        codes[position * IVFIndex.this.subspaces + m] = (byte) nearest(residual, subspaceStart[m],
+                                codebooks[m], IVFIndex.this.codebookSize, width);
+                    }
+                }
+            }
+        }, rows);
+    }
+
+    public int getLists() {
+        return lists;
+    }
+
+    public int getSubspaces() {
+        return subspaces;
+    }
+
+    public int getCodebookSize() {
+        return codebookSize;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * @return bytes of the codes, row numbers, centroids and codebooks
+     */
+    public long getIndexBytes() {
+        return codes.length + 4L * listRows.length + 4L * centroids.length + 4L * codebookSize * columns
+                + 4L * listTerms.length;
+    }
+
+    /**
+     * Finds the approximate k closest rows by the Euclidean distance of the standardised descriptors
+     *
+     * @param efdUser EFDs of the input leaf, at least efdLength
+     * @param huUser  Hu moments of the input leaf, at least huLength
+     * @param k       number of closest rows
+     * @param probes  number of lists scanned, 1 to the number of lists
+     * @return up to k rows of the probed lists with their exact distances
+     */
+    public TopK search(double[] efdUser, double[] huUser, int k, int probes) {
+        return search(efdUser, huUser, k, probes, Math.max(k * RERANK_FACTOR, MIN_CANDIDATES));
+    }
+
+    /**
+     * Finds the approximate k closest rows by the Euclidean distance of the standardised descriptors
+     *
+     * @param efdUser    EFDs of the input leaf, at least efdLength
+     * @param huUser     Hu moments of the input leaf, at least huLength
+     * @param k          number of closest rows
+     * @param probes     number of lists scanned, 1 to the number of lists
+     * @param candidates rows re-ranked exactly, at least k, more find more of the true neighbours
+     * @return up to k rows of the probed lists with their exact distances
+     */
+    public TopK search(double[] efdUser, double[] huUser, int k, int probes, int candidates) {
+        double[] query = new double[columns];
+        float[] floatQuery = new float[columns];
+        for (int c = 0; c < columns; c++) {
+            double value = c < efdLength ? efdUser[c] : huUser[c - efdLength];
+            query[c] = (value - mean[c]) * inverseDeviation[c];
+            floatQuery[c] = (float) query[c];
+        }
+
+        //closest coarse centroids
+        probes = Math.max(1, Math.min(probes, lists));
+        TopK closestLists = new TopK(probes);
+        for (int l = 0; l < lists; l++) {
+            closestLists.offer(squaredDistance(floatQuery, 0, centroids, l * columns, columns), l);
+        }
+        double[] listDistances = new double[probes];
+        int[] probed = new int[probes];
+        closestLists.sorted(listDistances, probed);
+
+        //-2 q.r of every codeword, shared by all lists
+        int tableLength = subspaces * codebookSize;
+        float[] queryTerms = new float[tableLength];
+        for (int m = 0; m < subspaces; m++) {
+            int width = subspaceStart[m + 1] - subspaceStart[m];
+            for (int j = 0; j < codebookSize; j++) {
+                float product = 0f;
+                for (int c = 0; c < width; c++) {
+                    product += floatQuery[subspaceStart[m] + c] * codebooks[m][j * width + c];
+                }
+                queryTerms[m * codebookSize + j] = -2 * product;
+            }
+        }
+
+        //asymmetric distances of the probed rows, one table lookup per subspace
+        TopK closest = new TopK(Math.min(rows, Math.max(k, candidates)));
+        float[] table = new float[tableLength];
+        int scanned = 0;
+        for (int p = 0; p < probes; p++) {
+            int l = probed[p];
+            for (int i = 0, offset = l * tableLength; i < tableLength; i++) {
+                table[i] = listTerms[offset + i] + queryTerms[i];
+            }
+            for (int position = listStart[l]; position < listStart[l + 1]; position++) {
+                float dist = (float) listDistances[p];
+                for (int m = 0, offset = position * subspaces; m < subspaces; m++) {
+                    dist += table[m * codebookSize + (codes[offset + m] & 0xff)];
+                }
+                if (dist < closest.worstDistance()) {
+                    closest.offer(dist, listRows[position]);
+                }
+            }
+            scanned += listStart[l + 1] - listStart[l];
+        }
+        PipelineMetrics.recordScannedRows(scanned);
+
+        //exact re-ranking of the candidates
+        double[] candidateDistances = new double[closest.size()];
+        int[] candidateRows = new int[closest.size()];
+        closest.sorted(candidateDistances, candidateRows);
+        TopK nearest = new TopK(Math.max(1, k));
+        double[] row = new double[columns];
+        for (int candidate : candidateRows) {
+            QuantizedMatrix.readRow(efdDatabase, efdLength, huDatabase, huLength, candidate, row);
+            double dist = 0.0;
+            for (int c = 0; c < columns; c++) {
+                double d = (row[c] - mean[c]) * inverseDeviation[c] - query[c];
+                dist += d * d;
+            }
+            nearest.offer(Math.sqrt(dist), candidate);
+        }
+        return nearest;
+    }
+
+    /**
+     * Offers rows that are not in the index, e.g. leaves added to the database after it was built,
+     * with their exact distances in the standardisation of the index
+     *
+     * @param efdUser  EFDs of the input leaf, at least efdLength
+     * @param huUser   Hu moments of the input leaf, at least huLength
+     * @param efdRows  row-major EFDs of the other rows
+     * @param huRows   row-major Hu moments of the other rows
+     * @param count    number of other rows
+     * @param firstRow row number of the first other row
+     * @param nearest  closest rows found so far, e.g. by search()
+     */
+    public void offerExact(double[] efdUser, double[] huUser, DoubleBuffer efdRows, DoubleBuffer huRows, int count,
+                           int firstRow, TopK nearest) {
+        QuantizedMatrix.offerExact(mean, inverseDeviation, efdLength, huLength, efdUser, huUser, efdRows, huRows,
+                count, firstRow, nearest);
+    }
+
+    /**
+     * Exact k closest rows by scanning all of them, the reference for the recall of search()
+     *
+     * @param efdUser EFDs of the input leaf, at least efdLength
+     * @param huUser  Hu moments of the input leaf, at least huLength
+     * @param k       number of closest rows
+     * @return k closest rows with their exact distances
+     */
+    public TopK searchExhaustive(double[] efdUser, double[] huUser, int k) {
+        double[] query = new double[columns];
+        for (int c = 0; c < columns; c++) {
+            double value = c < efdLength ? efdUser[c] : huUser[c - efdLength];
+            query[c] = (value - mean[c]) * inverseDeviation[c];
+        }
+        TopK nearest = new TopK(Math.min(k, rows));
+        double[] row = new double[columns];
+        for (int r = 0; r < rows; r++) {
+            QuantizedMatrix.readRow(efdDatabase, efdLength, huDatabase, huLength, r, row);
+            double dist = 0.0;
+            for (int c = 0; c < columns; c++) {
+                double d = (row[c] - mean[c]) * inverseDeviation[c] - query[c];
+                dist += d * d;
+            }
+            nearest.offer(Math.sqrt(dist), r);
+        }
+        return nearest;
+    }
+
+    /**
+     * Lloyd's k-means, started from k distinct random points,
+     * an empty cluster is restarted at a random point
+     *
+     * @param points row-major points
+     * @param count  number of points, at least k
+     * @param width  values per point
+     * @param k      number of centroids
+     * @param random random source
+     * @return row-major centroids
+     */
+    private static float[] kmeans(final float[] points, int count, final int width, final int k, Random random) {
+        final float[] centroids = new float[k * width];
+        int[] start = sample(count, k, random);
+        for (int j = 0; j < k; j++) {
+            System.arraycopy(points, start[j] * width, centroids, j * width, width);
+        }
+        final int[] assignment = new int[count];
+        double[] sums = new double[k * width];
+        int[] sizes = new int[k];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            run(new RowPass() {
+                @Override
+                public void run(int from, int to) {
+                    for (int p = from; p < to; p++) {
+                        assignment[p] = nearest(points, p * width, centroids, k, width);
+                    }
+                }
+            }, count);
+            Arrays.fill(sums, 0.0);
+            Arrays.fill(sizes, 0);
+            for (int p = 0; p < count; p++) {
+                int offset = assignment[p] * width;
+                sizes[assignment[p]]++;
+                for (int c = 0; c < width; c++) {
+                    sums[offset + c] += points[p * width + c];
+                }
+            }
+            for (int j = 0; j < k; j++) {
+                if (sizes[j] == 0) {
+                    System.arraycopy(points, random.nextInt(count) * width, centroids, j * width, width);
+                    continue;
+                }
+                for (int c = 0; c < width; c++) {
+                    centroids[j * width + c] = (float) (sums[j * width + c] / sizes[j]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Closest centroid of a point, a centroid is left as soon as its partial
+     * distance after a block of columns reaches the closest one so far
+     */
+    private static int nearest(float[] point, int offset, float[] centroids, int k, int width) {
+        int best = 0;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int j = 0; j < k; j++) {
+            float dist = 0f;
+            for (int block = 0; block < width && dist < bestDistance; block += CHECK_BLOCK) {
+                int end = Math.min(block + CHECK_BLOCK, width);
+                for (int c = block; c < end; c++) {
+                    float d = point[offset + c] - centroids[j * width + c];
+                    dist += d * d;
+                }
+            }
+            if (dist < bestDistance) {
+                bestDistance = dist;
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    private static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float dist = 0f;
+        for (int c = 0; c < length; c++) {
+            float d = a[aOffset + c] - b[bOffset + c];
+            dist += d * d;
+        }
+        return dist;
+    }
+
+    /**
+     * Up to count distinct random indices below n, all of them if n is not larger
+     */
+    private static int[] sample(int n, int count, Random random) {
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        count = Math.min(count, n);
+        //partial Fisher-Yates shuffle
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(n - i);
+            int swap = indices[i];
+            indices[i] = indices[j];
+            indices[j] = swap;
+        }
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Columns from - from + width of the sampled rows, row-major
+     */
+    private static float[] gather(float[] values, int columns, int[] sample, int from, int width) {
+        float[] gathered = new float[sample.length * width];
+        for (int i = 0; i < sample.length; i++) {
+            System.arraycopy(values, sample[i] * columns + from, gathered, i * width, width);
+        }
+        return gathered;
+    }
+
+    private static void run(RowPass pass, int n) {
+        ForkJoinPool.commonPool().invoke(new BandTask(pass, 0, n));
+    }
+}
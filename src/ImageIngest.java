@@ -0,0 +1,227 @@
+/**
+ * ImageIngest This class decodes an image once into the 8-bit grayscale
+ * rasters of the preparation and, for colour images, of the Hu moments
+ * <p>
+ * The image is read with ImageIO, optionally with source subsampling so
+ * the decoder skips rows and columns and the longer side stays at or below a
+ * maximum size. The decoded image is converted to gray with the weights and
+ * rounding of the ImageJ "8-bit" conversion and dropped, the colour pixels
+ * are not copied into a ColorProcessor. A colour image also carries the
+ * truncated average (r+g+b)/3 of its pixels as property MOMENT_GRAY, the
+ * gray values ImageMoments reads from colour pixels and the reference
+ * database was built from. A subsampled image carries the factor as property
+ * SUBSAMPLING, sizes in full resolution pixels have to be divided by its
+ * square. Its features are not those of the full resolution image, see
+ * LeafPipeline.setAllowSubsampling().
+ *
+ * @author Karina Becker
+ */
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+public class ImageIngest {
+    public static final String SUBSAMPLING = "subsampling";  // ImagePlus property, Integer factor
+    public static final String MOMENT_GRAY = "momentGray";   // ImagePlus property, ByteProcessor of the colour average
+
+    private final int maxSize;
+
+    /**
+     * @param maxSize maximum length of the longer side after subsampling, 0 decodes at full resolution
+     */
+    public ImageIngest(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative");
+        }
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Decodes an image file
+     *
+     * @param filePath path of the image
+     * @return grayscale image
+     * @throws IOException if the image cannot be read
+     */
+    public ImagePlus open(String filePath) throws IOException {
+        File file = new File(filePath);
+        if (!file.isFile()) {
+            throw new IOException("Cannot open image " + filePath);
+        }
+        ImagePlus imp = read(ImageIO.createImageInputStream(file), file.getName());
+        if (imp == null) {
+            throw new IOException("Unsupported image format " + filePath);
+        }
+        return imp;
+    }
+
+    /**
+     * Decodes image file bytes
+     *
+     * @param data  image file bytes
+     * @param title title of the image
+     * @return grayscale image, null if no decoder reads the format
+     * @throws IOException if the image cannot be read
+     */
+    public ImagePlus decode(byte[] data, String title) throws IOException {
+        return read(ImageIO.createImageInputStream(new ByteArrayInputStream(data)), title);
+    }
+
+    private ImagePlus read(ImageInputStream in, String title) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int factor = subsampling(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                ImagePlus imp = new ImagePlus(title, toGray(image, ColorProcessor.getWeightingFactors()));
+                imp.setProperty(SUBSAMPLING, factor);
+                if (image.getColorModel().getNumColorComponents() > 1) {
+                    imp.setProperty(MOMENT_GRAY, toAverage(image));
+                }
+                return imp;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Smallest factor that brings the longer side to maxSize or below
+     */
+    int subsampling(int width, int height) {
+        int longer = Math.max(width, height);
+        if (maxSize == 0 || longer <= maxSize) {
+            return 1;
+        }
+        return (longer + maxSize - 1) / maxSize;
+    }
+
+    /**
+     * @param imp image
+     * @return subsampling factor of an ingested image, 1 for any other image
+     */
+    public static int getSubsampling(ImagePlus imp) {
+        Object factor = imp.getProperty(SUBSAMPLING);
+        return factor instanceof Integer ? (Integer) factor : 1;
+    }
+
+    /**
+     * @param imp image
+     * @return gray image the Hu moments are taken from: the colour average of
+     * an ingested colour image, the processor of any other image
+     */
+    public static ImageProcessor getMomentSource(ImagePlus imp) {
+        Object gray = imp.getProperty(MOMENT_GRAY);
+        return gray instanceof ImageProcessor ? (ImageProcessor) gray : imp.getProcessor();
+    }
+
+    /**
+     * Unweighted average of the colour channels, truncated like ImageMoments
+     * does it for colour pixels
+     *
+     * @param image decoded colour image
+     * @return 8-bit image
+     */
+    static ByteProcessor toAverage(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        byte[] gray = new byte[w * h];
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR && buffer instanceof DataBufferByte
+                && buffer.getNumBanks() == 1 && image.getRaster().getParent() == null) {
+            byte[] bgr = ((DataBufferByte) buffer).getData();
+            for (int i = 0, offset = 0; i < gray.length; i++, offset += 3) {
+                gray[i] = (byte) (((bgr[offset] & 0xff) + (bgr[offset + 1] & 0xff) + (bgr[offset + 2] & 0xff)) / 3);
+            }
+        } else {
+            int[] rgbRow = new int[w];
+            for (int y = 0; y < h; y++) {
+                image.getRGB(0, y, w, 1, rgbRow, 0, w);
+                for (int x = 0, i = y * w; x < w; x++, i++) {
+                    int c = rgbRow[x];
+                    gray[i] = (byte) ((((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) / 3);
+                }
+            }
+        }
+        return new ByteProcessor(w, h, gray);
+    }
+
+    /**
+     * Grayscale raster of a decoded image, colour pixels are weighted and
+     * rounded like ImageJ's TypeConverter, gray images are copied
+     *
+     * @param image   decoded image
+     * @param weights red, green and blue weights
+     * @return 8-bit image
+     */
+    static ByteProcessor toGray(BufferedImage image, double[] weights) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double rw = weights[0], gw = weights[1], bw = weights[2];
+        byte[] gray = new byte[w * h];
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        boolean direct = image.getRaster().getParent() == null && buffer.getNumBanks() == 1;
+        int type = image.getType();
+        if (direct && type == BufferedImage.TYPE_3BYTE_BGR && buffer instanceof DataBufferByte) {
+            byte[] bgr = ((DataBufferByte) buffer).getData();
+            for (int i = 0, offset = 0; i < gray.length; i++, offset += 3) {
+                gray[i] = (byte) (int) ((bgr[offset + 2] & 0xff) * rw + (bgr[offset + 1] & 0xff) * gw
+                        + (bgr[offset] & 0xff) * bw + 0.5);
+            }
+        } else if (direct && type == BufferedImage.TYPE_BYTE_GRAY && buffer instanceof DataBufferByte) {
+            System.arraycopy(((DataBufferByte) buffer).getData(), 0, gray, 0, gray.length);
+        } else if (direct && (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && buffer instanceof DataBufferInt) {
+            toGray(((DataBufferInt) buffer).getData(), 0, gray, 0, gray.length, rw, gw, bw);
+        } else {
+            //Any other layout: one bulk getRGB per row
+            int[] rgbRow = new int[w];
+            for (int y = 0; y < h; y++) {
+                image.getRGB(0, y, w, 1, rgbRow, 0, w);
+                toGray(rgbRow, 0, gray, y * w, w, rw, gw, bw);
+            }
+        }
+        return new ByteProcessor(w, h, gray);
+    }
+
+    private static void toGray(int[] rgb, int offset, byte[] gray, int grayOffset, int length,
+                               double rw, double gw, double bw) {
+        for (int i = 0; i < length; i++) {
+            int c = rgb[offset + i];
+            gray[grayOffset + i] = (byte) (int) (((c >> 16) & 0xff) * rw + ((c >> 8) & 0xff) * gw + (c & 0xff) * bw + 0.5);
+        }
+    }
+}
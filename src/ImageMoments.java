@@ -2,6 +2,8 @@
  * HuMoments This class generates the seven Hu moments
  * The 7th Hu moment, the skew invariant, is disabled since ability to
  * distinguish between mirror images is not necessary for leaf recognition
+ * The moments can be limited to a region and a mask within it, then only the
+ * pixels of one particle are read and the background does not contribute
  *
  * @author Karina Becker
  * <p>
@@ -9,12 +11,23 @@
  * Source: https://github.com/janetZhang/objectRecong-git-5-9/blob/913a399b3eef3e8b3917a3f5f49d824f6b9d84d0/image/csu/fullerton/edu/ImageMoments.java
  */
 
-import java.awt.Color;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
 
 public class ImageMoments {
     private BufferedImage sourceImage;
-    private double imageMatrix[][];
+    private ImageProcessor sourceProcessor;
+    private Rectangle region;        // pixels read, null for the whole image
+    private ImageProcessor regionMask; // pixels of the region that count, null for all
+    private int[] grayLut;
     private boolean momentsCalculated;
     private double moments[];
 
@@ -24,80 +37,154 @@ public class ImageMoments {
         momentsCalculated = false;
     }
 
-    private void generateImageMatrix() {
-        int w = sourceImage.getWidth();
-        int h = sourceImage.getHeight();
-        imageMatrix = new double[h][w];
+    /**
+     * Constructor reading the pixels of an ImageJ processor in place,
+     * without converting it to a BufferedImage first
+     *
+     * @param ip image processor of the input image
+     */
+    ImageMoments(ImageProcessor ip) {
+        sourceProcessor = ip;
+        momentsCalculated = false;
+    }
 
-        for (int i = 0; i < w; i++) {
-            for (int j = 0; j < h; j++) {
-                Color c = new Color(sourceImage.getRGB(i, j));
-                int avgColor = (c.getRed() + c.getGreen() + c.getBlue()) / 3;
-                imageMatrix[j][i] = (double) (avgColor) / 255;
-            }
+    /**
+     * Constructor reading only the pixels of a region of an ImageJ processor
+     * that are set in a mask, e.g. one leaf of an image with several leaves
+     *
+     * @param ip     image processor of the input image
+     * @param region region read, within the image
+     * @param mask   mask of the size of the region, pixels other than 0 count
+     */
+    ImageMoments(ImageProcessor ip, Rectangle region, ImageProcessor mask) {
+        if (mask.getWidth() != region.width || mask.getHeight() != region.height) {
+            throw new IllegalArgumentException("Mask must have the size of the region");
         }
+        sourceProcessor = ip;
+        this.region = region;
+        regionMask = mask;
+        momentsCalculated = false;
     }
 
-    private double getRawMoment(int p, int q) {
-        double m = 0;
-        for (int i = 0, k = imageMatrix.length; i < k; i++) {
-            for (int j = 0, l = imageMatrix[i].length; j < l; j++) {
-                m += Math.pow(i, p) * Math.pow(j, q) * imageMatrix[i][j];
+    /**
+     * Reads one row of average colour values (0..255) into rowValues
+     *
+     * @param y         row index
+     * @param x0        first column
+     * @param rowValues reused scratch array with one entry per column read
+     * @param rgbRow    reused scratch array for images without direct buffer access
+     */
+    private void readRow(int y, int x0, int[] rowValues, int[] rgbRow) {
+        int w = rowValues.length;
+        if (sourceProcessor != null) {
+            Object pixels = sourceProcessor.getPixels();
+            int start = y * sourceProcessor.getWidth() + x0;
+            if (pixels instanceof int[]) {
+                averageRGB((int[]) pixels, start, rowValues);
+            } else {
+                byte[] bytes = (byte[]) pixels;
+                for (int x = 0, offset = start; x < w; x++) {
+                    rowValues[x] = grayLut[bytes[offset + x] & 0xff];
+                }
             }
+            return;
         }
-        return m;
-    }
 
-    private double getCentralMoment(int p, int q) {
-        double mc = 0;
-        double m00 = getRawMoment(0, 0);
-        double m10 = getRawMoment(1, 0);
-        double m01 = getRawMoment(0, 1);
-        double x0 = m10 / m00;
-        double y0 = m01 / m00;
-        for (int i = 0, k = imageMatrix.length; i < k; i++) {
-            for (int j = 0, l = imageMatrix[i].length; j < l; j++) {
-                mc += Math.pow((i - x0), p) * Math.pow((j - y0), q)
-                        * imageMatrix[i][j];
+        DataBuffer buffer = sourceImage.getRaster().getDataBuffer();
+        int type = sourceImage.getType();
+        int start = y * sourceImage.getWidth() + x0;
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && buffer instanceof DataBufferInt && buffer.getNumBanks() == 1
+                && sourceImage.getRaster().getParent() == null) {
+            averageRGB(((DataBufferInt) buffer).getData(), start, rowValues);
+        } else if (type == BufferedImage.TYPE_3BYTE_BGR && buffer instanceof DataBufferByte
+                && sourceImage.getRaster().getParent() == null) {
+            byte[] bytes = ((DataBufferByte) buffer).getData();
+            for (int x = 0, offset = start * 3; x < w; x++, offset += 3) {
+                rowValues[x] = ((bytes[offset] & 0xff) + (bytes[offset + 1] & 0xff) + (bytes[offset + 2] & 0xff)) / 3;
             }
+        } else {
+            //Any other layout: one bulk getRGB per row
+            sourceImage.getRGB(x0, y, w, 1, rgbRow, 0, w);
+            averageRGB(rgbRow, 0, rowValues);
+        }
+    }
+
+    private static void averageRGB(int[] rgb, int offset, int[] rowValues) {
+        for (int x = 0; x < rowValues.length; x++) {
+            int c = rgb[offset + x];
+            rowValues[x] = (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) / 3;
         }
-        return mc;
     }
 
-    private double getNormalizedCentralMoment(int p, int q, double n00) {
-        double gamma = ((p + q) / 2) + 1;
-        double mpq = getCentralMoment(p, q);
-        double m00gamma = Math.pow(n00, gamma);
-        return mpq / m00gamma;
+    /**
+     * Average colour of each LUT entry, handles inverted and colour LUTs like getRGB would
+     */
+    private static int[] grayLut(ColorModel cm) {
+        int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            if (cm instanceof IndexColorModel && i < ((IndexColorModel) cm).getMapSize()) {
+                IndexColorModel icm = (IndexColorModel) cm;
+                lut[i] = (icm.getRed(i) + icm.getGreen(i) + icm.getBlue(i)) / 3;
+            } else {
+                lut[i] = i;
+            }
+        }
+        return lut;
     }
 
     private void calculateMoments() {
         // The Hu moments are 0..7,
-        moments = new double[6];
-
-        generateImageMatrix();
-
-        double n00 = getCentralMoment(0, 0);
-        double n20 = getNormalizedCentralMoment(2, 0, n00);
-        double n02 = getNormalizedCentralMoment(0, 2, n00);
-        double n30 = getNormalizedCentralMoment(3, 0, n00);
-        double n12 = getNormalizedCentralMoment(1, 2, n00);
-        double n21 = getNormalizedCentralMoment(2, 1, n00);
-        double n03 = getNormalizedCentralMoment(0, 3, n00);
-        double n11 = getNormalizedCentralMoment(1, 1, n00);
-
-        moments[0] = n20 + n02; // Hu1
-        moments[1] = Math.pow((n20 - 02), 2) + Math.pow(2 * n11, 2); // Hu2
-        moments[2] = Math.pow(n30 - (3 * (n12)), 2)
-                + Math.pow((3 * n21 - n03), 2); // Hu3
-        moments[3] = Math.pow((n30 + n12), 2) + Math.pow((n12 + n03), 2); // Hu4
-        moments[4] = (n30 - 3 * n12) * (n30 + n12)
-                * (Math.pow((n30 + n12), 2) - 3 * Math.pow((n21 + n03), 2))
-                + (3 * n21 - n03) * (n21 + n03)
-                * (3 * Math.pow((n30 + n12), 2) - Math.pow((n21 + n03), 2)); // Hu5
-        moments[5] = (n20 - n02)
-                * (Math.pow((n30 + n12), 2) - Math.pow((n21 + n03), 2)) + 4
-                * n11 * (n30 + n12) * (n21 + n03); // Hu6
+        if (sourceProcessor != null && !(sourceProcessor instanceof ColorProcessor)
+                && !(sourceProcessor.getPixels() instanceof byte[])) {
+            //16 and 32 bit images are scaled to 8 bit as getBufferedImage() would do
+            sourceProcessor = sourceProcessor.convertToByte(true);
+        }
+        if (sourceProcessor != null && !(sourceProcessor instanceof ColorProcessor)) {
+            grayLut = grayLut(sourceProcessor.getColorModel());
+        }
+        int x0 = 0, y0 = 0;
+        int w = sourceProcessor != null ? sourceProcessor.getWidth() : sourceImage.getWidth();
+        int h = sourceProcessor != null ? sourceProcessor.getHeight() : sourceImage.getHeight();
+        if (region != null) {
+            x0 = region.x;
+            y0 = region.y;
+            w = region.width;
+            h = region.height;
+        }
+        int[] rowValues = new int[w];
+        int[] rgbRow = new int[w];
+
+        //Collect all raw moments in one pass over the rows, coordinates relative to the region centre
+        MomentAccumulator accumulator = new MomentAccumulator();
+        double originRow = (h - 1) / 2.0;
+        double originColumn = (w - 1) / 2.0;
+        for (int i = 0; i < h; i++) {
+            readRow(y0 + i, x0, rowValues, rgbRow);
+            if (regionMask != null) {
+                //pixels outside the particle do not count
+                for (int j = 0; j < w; j++) {
+                    if (regionMask.get(j, i) == 0) {
+                        rowValues[j] = 0;
+                    }
+                }
+            }
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            double c = -originColumn;
+            for (int j = 0; j < w; j++, c++) {
+                double v = rowValues[j];
+                double cv = c * v;
+                double ccv = c * cv;
+                s0 += v;
+                s1 += cv;
+                s2 += ccv;
+                s3 += c * ccv;
+            }
+            //Intensities are scaled to 0..1
+            accumulator.addRow(i - originRow, s0 / 255, s1 / 255, s2 / 255, s3 / 255);
+        }
+
+        moments = accumulator.getHuMoments();
         /*moments[6] = (3 * n21 - n03) * (n30 + n12)
 				* (Math.pow((n30 + n12), 2) - 3 * Math.pow((n21 + n03), 2))
 				+ (n30 - 3 * n12) * (n21 + n03)
@@ -111,6 +198,7 @@ public class ImageMoments {
 
     private void calculateMoments(BufferedImage image) {
         sourceImage = image;
+        sourceProcessor = null;
         calculateMoments();
     }
 
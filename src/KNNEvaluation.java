@@ -0,0 +1,256 @@
+/**
+ * KNNEvaluation This class tunes the KNNPlant parameters with leave-one-out
+ * cross-validation on the reference database: number of neighbours k,
+ * weights of the EFD and Hu moment distances and the distance variant
+ * <p>
+ * Every leaf is a query against all other leaves. Its EFD and Hu moment
+ * distances to them are computed once per distance variant into two rows
+ * of n doubles that each task reuses, no n^2 matrix is kept, so databases of
+ * any size can be swept. The combined distance of a weight pair is a
+ * weighted sum of the two rows, so every weight pair only adds them up
+ * again. For every leaf the closest maxK other leaves are selected once per
+ * weight pair and the vote of every k up to maxK is taken from this
+ * selection, with the same majority vote as KNNPlant. Leaves are spread over
+ * all cores with fork-join. Accuracy of every setting and time of every
+ * distance variant are reported.
+ *
+ * @author Karina Becker
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class KNNEvaluation {
+    public static final int EUCLIDEAN = 0;  // distance as in KNNPlant
+    public static final int MANHATTAN = 1;
+    private static final String[] VARIANT_NAMES = {"euclidean", "manhattan"};
+    public static final int DEFAULT_MAX_K = 15;
+    private static final int BAND_ROWS = 16;  // leaves per parallel task
+
+    private final String[] species;
+    private final double[] efd;   // row-major, efdLength values per leaf
+    private final double[] hu;    // row-major, huLength values per leaf
+    private final int efdLength;
+    private final int huLength;
+    private final int n;
+
+    private interface RowPass {
+        void run(int from, int to);
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowPass pass;
+        private final int from;
+        private final int to;
+
+        BandTask(RowPass pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BAND_ROWS) {
+                pass.run(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BandTask(pass, from, middle), new BandTask(pass, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Result of one setting
+     */
+    public static class Result {
+        public final int variant;
+        public final double efdFactor;
+        public final double huFactor;
+        public final int k;
+        public final int correct;         // leaves classified as their own species
+        public final double accuracy;
+        public final double millis;       // time of the distance variant, shared by all weight pairs and k
+
+        public Result(int variant, double efdFactor, double huFactor, int k, int correct, double accuracy,
+                      double millis) {
+            this.variant = variant;
+            this.efdFactor = efdFactor;
+            this.huFactor = huFactor;
+            this.k = k;
+            this.correct = correct;
+            this.accuracy = accuracy;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-10s %10.3g %10.3g %4d %8.4f %10.2f",
+                    VARIANT_NAMES[variant], efdFactor, huFactor, k, accuracy, millis);
+        }
+    }
+
+    /**
+     * Constructor KNNEvaluation copies the descriptors of a feature store
+     *
+     * @param store opened feature store with at least two leaves
+     */
+    public KNNEvaluation(FeatureStore store) {
+        n = store.size();
+        if (n < 2) {
+            throw new IllegalArgumentException("Leave-one-out needs at least two leaves");
+        }
+        efdLength = store.getEfdLength();
+        huLength = store.getHuLength();
+        species = new String[n];
+        for (int row = 0; row < n; row++) {
+            species[row] = store.getSpecies(row);
+        }
+        efd = new double[n * efdLength];
+        hu = new double[n * huLength];
+        store.readEfd(efd);
+        store.readHu(hu);
+    }
+
+    /**
+     * Leave-one-out evaluation of all combinations of the settings
+     *
+     * @param variants   distance variants, EUCLIDEAN or MANHATTAN
+     * @param efdFactors weights of the EFD distance
+     * @param huFactors  weights of the Hu moment distance, one per EFD weight
+     * @param maxK       all k from 1 to maxK are evaluated, at most n - 1
+     * @return one result per variant, weight pair and k
+     */
+    public List<Result> sweep(int[] variants, double[] efdFactors, double[] huFactors, int maxK) {
+        if (efdFactors.length != huFactors.length) {
+            throw new IllegalArgumentException("Expected as many EFD weights as Hu moment weights");
+        }
+        maxK = Math.min(maxK, n - 1);
+        List<Result> results = new ArrayList<Result>();
+        for (int variant : variants) {
+            long start = System.nanoTime();
+            int[][] correct = vote(variant, efdFactors, huFactors, maxK);
+            double millis = (System.nanoTime() - start) / 1e6;
+            for (int w = 0; w < efdFactors.length; w++) {
+                for (int k = 1; k <= maxK; k++) {
+                    results.add(new Result(variant, efdFactors[w], huFactors[w], k, correct[w][k],
+                            correct[w][k] / (double) n, millis));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Classifies every leaf with all other leaves as database for every weight pair,
+     * the distances of one leaf are computed once and kept only while it is classified
+     *
+     * @return number of correctly classified leaves per weight pair and k, index 0 of k unused
+     */
+    private int[][] vote(final int variant, final double[] efdFactors, final double[] huFactors, final int maxK) {
+        final int[][] correct = new int[efdFactors.length][maxK + 1];
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                int[][] bandCorrect = new int[efdFactors.length][maxK + 1];
+                double[] efdDistances = new double[n];
+                double[] huDistances = new double[n];
+                TopK nearest = new TopK(maxK);
+                double[] sortedDistances = new double[maxK];
+                int[] sortedRows = new int[maxK];
+                String[] names = new String[maxK];
+                for (int i = from; i < to; i++) {
+                    for (int j = 0; j < n; j++) {
+                        efdDistances[j] = distance(efd, i * efdLength, j * efdLength, efdLength, variant);
+                        huDistances[j] = distance(hu, i * huLength, j * huLength, huLength, variant);
+                    }
+                    for (int w = 0; w < efdFactors.length; w++) {
+                        nearest.clear();
+                        for (int j = 0; j < n; j++) {
+                            if (j != i) {
+                                nearest.offer(efdDistances[j] * efdFactors[w] + huDistances[j] * huFactors[w], j);
+                            }
+                        }
+                        nearest.sorted(sortedDistances, sortedRows);
+                        for (int r = 0; r < maxK; r++) {
+                            names[r] = species[sortedRows[r]];
+                        }
+                        for (int k = 1; k <= maxK; k++) {
+                            String majority = KNNPlant.vote(Arrays.copyOf(names, k), Arrays.copyOf(sortedDistances, k));
+                            if (majority.equals(species[i])) {
+                                bandCorrect[w][k]++;
+                            }
+                        }
+                    }
+                }
+                synchronized (correct) {
+                    for (int w = 0; w < efdFactors.length; w++) {
+                        for (int k = 1; k <= maxK; k++) {
+                            correct[w][k] += bandCorrect[w][k];
+                        }
+                    }
+                }
+            }
+        });
+        return correct;
+    }
+
+    private void run(RowPass pass) {
+        ForkJoinPool.commonPool().invoke(new BandTask(pass, 0, n));
+    }
+
+    private static double distance(double[] values, int a, int b, int length, int variant) {
+        double dist = 0.0;
+        if (variant == MANHATTAN) {
+            for (int j = 0; j < length; ++j) {
+                dist += Math.abs(values[a + j] - values[b + j]);
+            }
+            return dist;
+        }
+        for (int j = 0; j < length; ++j) {
+            double d = values[a + j] - values[b + j];
+            dist += d * d;
+        }
+        return Math.sqrt(dist);
+    }
+
+    /**
+     * Sweeps both distance variants, k from 1 to maxK, EFD weight 1 with Hu weights
+     * from 0 to 1e-4 and Hu moments alone, prints all results and the best setting
+     * optional arguments: database path and maxK
+     */
+    public static void main(String[] args) throws IOException {
+        String database = args.length > 0 ? args[0] : KNNPlant.DEFAULT_DATABASE;
+        int maxK = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_K;
+        double[] huWeights = {0, 1e-10, 1e-9, 2e-9, 1e-8, KNNPlant.DEFAULT_HU_FACTOR, 5e-8, 1e-7, 1e-6, 1e-5, 1e-4};
+        double[] efdFactors = new double[huWeights.length + 1];
+        double[] huFactors = new double[huWeights.length + 1];
+        for (int w = 0; w < huWeights.length; w++) {
+            efdFactors[w] = KNNPlant.DEFAULT_EFD_FACTOR;
+            huFactors[w] = huWeights[w];
+        }
+        huFactors[huWeights.length] = 1;  // Hu moments alone
+
+        long start = System.nanoTime();
+        KNNEvaluation evaluation = new KNNEvaluation(FeatureStore.open(database));
+        List<Result> results = evaluation.sweep(new int[]{EUCLIDEAN, MANHATTAN}, efdFactors, huFactors, maxK);
+        System.out.println(String.format(Locale.US, "%-10s %10s %10s %4s %8s %10s",
+                "distance", "efdFactor", "huFactor", "k", "accuracy", "time [ms]"));
+        Result best = results.get(0);
+        for (Result result : results) {
+            System.out.println(result);
+            if (result.accuracy > best.accuracy) {
+                best = result;
+            }
+        }
+        System.out.println("Best: " + best);
+        System.out.println(String.format(Locale.US, "%d settings evaluated in %.2f ms",
+                results.size(), (System.nanoTime() - start) / 1e6));
+    }
+}
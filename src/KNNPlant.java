@@ -2,6 +2,14 @@
  * KNNPlant This class implements a function to find k nearest neighbours (KNN)
  * of a new instance of a plant's leaf
  * It uses majority vote for classification
+ * A classifier is also the in-process Shard of a ShardCoordinator
+ * <p>
+ * The rows are held in two segments: the base segment, usually the mapped
+ * feature store, which the metric tree, the quantized matrices and the
+ * inverted file are built over, and a small delta segment of the leaves
+ * appended since, which every search scans brute force next to the base
+ * segment. Appending only copies the delta segment and keeps the indices of
+ * the base segment, compact() moves the delta rows into a new base segment.
  *
  * @author Karina Becker
  * <p>
@@ -11,179 +19,744 @@
  * Youtube: https://www.youtube.com/user/DrNoureddinSadawi
  */
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class KNNPlant implements Shard {
+    public static final String DEFAULT_DATABASE = "file/data.csv";
+    public static final double DEFAULT_EFD_FACTOR = 1;
+    public static final double DEFAULT_HU_FACTOR = 0.00000002;
+    private static final int QUERY_BLOCK = 16;      // queries per batch task
+    private static final int DATABASE_BLOCK = 512;  // database rows per cache block
+    private static final String[] NO_NAMES = new String[0];
+    private final String[] namesDatabase;   // base segment, rows 0 to namesDatabase.length - 1
+    private final DoubleBuffer efdDatabase; // row-major, efdLength values per database leaf, read with absolute gets
+    private final DoubleBuffer huDatabase;  // row-major, huLength values per database leaf
+    private final String[] namesDelta;      // delta segment, the rows after the base segment
+    private final DoubleBuffer efdDelta;
+    private final DoubleBuffer huDelta;
+    private final int efdLength;
+    private final int huLength;
+    private final double efdFactor;     // weight of the EFD distance
+    private final double huFactor;      // weight of the Hu moment distance
+    private final Indices indices;      // indices over the base segment, shared with the appended classifiers
 
-import com.opencsv.CSVReader;
+    /**
+     * Indices over the base segment, built on first use
+     */
+    private static class Indices {
+        private volatile VPTree tree;       // exact metric tree over the combined distance
+        private final QuantizedMatrix[] quantized = new QuantizedMatrix[2]; // standardised rows per precision
+        private volatile IVFIndex approximate; // inverted file with default knobs
+    }
 
-public class KNNPlant {
-    private List<Result> resultListEfd;
-    private List<Result> resultListHu;
-    private List<Result> resultList;
-    private double[] efdUser;
-    private double[] huUser;
-    public String[] namesDatabase;
-    public double[][] efdDatabase;
-    public double[][] huDatabase;
+    /**
+     * Constructor KNNPlant loads the default database once,
+     * the classifier is immutable and can be shared between threads
+     *
+     * @throws IOException if the database cannot be read
+     */
+    public KNNPlant() throws IOException {
+        this(DEFAULT_DATABASE);
+    }
 
     /**
-     * Constructor  KNNPlant to find nearest neighbour of input leaf
-     * and get majority vote to determinate species
+     * Constructor KNNPlant loads a database once,
+     * the classifier is immutable and can be shared between threads
      *
-     * @param efd       EFD double array derived from user input leaf
-     * @param huMoments double array with huMoments
-     * @param k         number of closest matches to consider
+     * @param filePath path of the csv database or binary feature store
+     * @throws IOException if the database cannot be read
+     */
+    public KNNPlant(String filePath) throws IOException {
+        this(FeatureStore.open(filePath));
+    }
+
+    /**
+     * Constructor KNNPlant scans the descriptors of a feature store in place,
+     * a mapped store is not copied to the heap,
+     * number of rows and descriptors are taken from the store
+     *
+     * @param store opened feature store
      */
-    public KNNPlant(double[] efdUser, double[] huUser, int k) {
-        this.efdUser = efdUser;
-        this.huUser = huUser;
-        resultListEfd = new ArrayList<Result>();
-        resultListHu = new ArrayList<Result>();
-        resultList = new ArrayList<Result>();
+    public KNNPlant(FeatureStore store) {
+        this(store, DEFAULT_EFD_FACTOR, DEFAULT_HU_FACTOR);
+    }
 
-        //read from database
-        readDatabase();
+    /**
+     * Constructor KNNPlant scans the descriptors of a feature store in place
+     * and weights the two distances, see KNNEvaluation for tuning the weights
+     *
+     * @param store     opened feature store
+     * @param efdFactor weight of the EFD distance
+     * @param huFactor  weight of the Hu moment distance
+     */
+    public KNNPlant(FeatureStore store, double efdFactor, double huFactor) {
+        this.efdFactor = efdFactor;
+        this.huFactor = huFactor;
+        int lineCount = store.size();
+        efdLength = store.getEfdLength();
+        huLength = store.getHuLength();
+        namesDatabase = new String[lineCount];
+        for (int row = 0; row < lineCount; row++) {
+            namesDatabase[row] = store.getSpecies(row);
+        }
+        efdDatabase = store.getEfd();
+        huDatabase = store.getHu();
+        namesDelta = NO_NAMES;
+        efdDelta = allocate(0);
+        huDelta = allocate(0);
+        indices = new Indices();
+    }
 
-        //calculate Euclidean distance between efd or Hu moments and database
-        double[] efdResults = calculateShepardsDistance(calculateEuclideanDistance(efdUser, efdDatabase, 1));
-        double[] huResults = calculateShepardsDistance(calculateEuclideanDistance(huUser, huDatabase, 0.00000002));
+    private KNNPlant(String[] namesDatabase, DoubleBuffer efdDatabase, DoubleBuffer huDatabase,
+                     String[] namesDelta, DoubleBuffer efdDelta, DoubleBuffer huDelta, int efdLength, int huLength,
+                     double efdFactor, double huFactor, Indices indices) {
+        this.namesDatabase = namesDatabase;
+        this.efdDatabase = efdDatabase;
+        this.huDatabase = huDatabase;
+        this.namesDelta = namesDelta;
+        this.efdDelta = efdDelta;
+        this.huDelta = huDelta;
+        this.efdLength = efdLength;
+        this.huLength = huLength;
+        this.efdFactor = efdFactor;
+        this.huFactor = huFactor;
+        this.indices = indices;
+    }
 
-        //array for combination of methods
-        double[] combinedResults = new double[efdResults.length];
-        for (int i = 0; i < combinedResults.length; i++) {
-            combinedResults[i] = efdResults[i] + huResults[0];
+    /**
+     * New classifier with the leaves of this one followed by more leaves,
+     * this classifier is left unchanged and can still be used.
+     * The leaves go to the delta segment, only the delta segment is copied
+     * and the indices of the base segment are shared
+     *
+     * @param samples leaves to add, with at least as many EFDs and Hu moments as the database,
+     *                further descriptors are dropped
+     * @return classifier over all leaves with the same weights
+     */
+    public KNNPlant append(List<LeafSample> samples) {
+        int oldCount = namesDelta.length;
+        int lineCount = oldCount + samples.size();
+        String[] names = Arrays.copyOf(namesDelta, lineCount);
+        DoubleBuffer efd = allocate(lineCount * efdLength);
+        DoubleBuffer hu = allocate(lineCount * huLength);
+        efd.put(efdDelta.duplicate());
+        hu.put(huDelta.duplicate());
+        for (int i = 0; i < samples.size(); i++) {
+            LeafSample sample = samples.get(i);
+            if (sample.efd.length < efdLength || sample.hu.length < huLength) {
+                throw new IllegalArgumentException("Expected at least " + efdLength + " EFDs and "
+                        + huLength + " Hu moments");
+            }
+            names[oldCount + i] = sample.species;
+            efd.put(sample.efd, 0, efdLength);
+            hu.put(sample.hu, 0, huLength);
         }
+        efd.rewind();
+        hu.rewind();
+        if (namesDatabase.length == 0) {
+            //no indices to keep, the leaves form the base segment
+            return new KNNPlant(names, efd, hu, NO_NAMES, allocate(0), allocate(0), efdLength, huLength,
+                    efdFactor, huFactor, new Indices());
+        }
+        return new KNNPlant(namesDatabase, efdDatabase, huDatabase, names, efd, hu, efdLength, huLength,
+                efdFactor, huFactor, indices);
+    }
 
-        //add results to result list
-        for (int i = 0; i < namesDatabase.length; i++) {
-            resultListEfd.add(new Result(namesDatabase[i], efdResults[i]));
-            resultListHu.add(new Result(namesDatabase[i], huResults[i]));
-            resultList.add(new Result(namesDatabase[i], combinedResults[i]));
+    /**
+     * Classifier over the same leaves with the delta segment moved into the base segment,
+     * the indices are built again on first use
+     *
+     * @return classifier with an empty delta segment, this one if it has no delta rows
+     */
+    public KNNPlant compact() {
+        if (namesDelta.length == 0) {
+            return this;
         }
+        int lineCount = size();
+        String[] names = Arrays.copyOf(namesDatabase, lineCount);
+        System.arraycopy(namesDelta, 0, names, namesDatabase.length, namesDelta.length);
+        DoubleBuffer efd = allocate(lineCount * efdLength);
+        DoubleBuffer hu = allocate(lineCount * huLength);
+        efd.put(efdDatabase.duplicate()).put(efdDelta.duplicate());
+        hu.put(huDatabase.duplicate()).put(huDelta.duplicate());
+        efd.rewind();
+        hu.rewind();
+        return new KNNPlant(names, efd, hu, NO_NAMES, allocate(0), allocate(0), efdLength, huLength,
+                efdFactor, huFactor, new Indices());
+    }
 
-        //sort results
-        Collections.sort(resultListEfd, new DistanceComparator());
-        Collections.sort(resultListHu, new DistanceComparator());
-        Collections.sort(resultList, new DistanceComparator());
+    /**
+     * Direct buffer for a segment, outside the heap like a mapped feature store
+     */
+    private static DoubleBuffer allocate(int values) {
+        return ByteBuffer.allocateDirect(8 * values).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
 
-        //Get classes of k nearest instances (species names) from the list into an array
-        String[] speciesClosestMatchEfd = new String[k];
-        String[] speciesClosestMatchHu = new String[k];
-        String[] speciesClosestMatch = new String[k];
-        System.out.println("\n_________K = " + k + " CLOSTEST MATCHES__________");
-        for (int i = 0; i < k; i++) {
-            //speciesClosestMatchEfd[i] = resultListEfd.get(i).speciesName;
-            //System.out.println(resultListEfd.get(i).speciesName+ "\t" + resultListEfd.get(i).distance);
-            //speciesClosestMatchHu[i] = resultListHu.get(i).speciesName;
-            //System.out.println(resultListHu.get(i).speciesName+ "\t" + resultListHu.get(i).distance);
-            speciesClosestMatch[i] = resultList.get(i).speciesName;
-            System.out.println(resultList.get(i).speciesName + "\t" + resultList.get(i).distance);
-        }
+    /**
+     * Classifier over the same leaves with other weights, the descriptors are shared,
+     * the indices are built again on first use
+     *
+     * @param efdFactor weight of the EFD distance
+     * @param huFactor  weight of the Hu moment distance, 0 ranks by the EFDs alone
+     * @return classifier with the given weights
+     */
+    public KNNPlant withFactors(double efdFactor, double huFactor) {
+        return new KNNPlant(namesDatabase, efdDatabase, huDatabase, namesDelta, efdDelta, huDelta,
+                efdLength, huLength, efdFactor, huFactor, new Indices());
+    }
 
-        //Get majority vote
-        //String majClassEfd = findMajorityClass(speciesClosestMatchEfd, resultListEfd, k);
-        //String majClassHu = findMajorityClass(speciesClosestMatchHu, resultListHu, k);
-        String majClass = findMajorityClass(speciesClosestMatch, resultList, k);
-        System.out.println("\n_________CLASSIFICATION RESULT___________");
-        //System.out.println("EFD Class of new instance is: " + majClassEfd);
-        //System.out.println("Hu Class of new instance is: " + majClassHu);
-        System.out.println("Combined Class of new instance is: " + majClass);
+    public double getEfdFactor() {
+        return efdFactor;
+    }
+
+    public double getHuFactor() {
+        return huFactor;
     }
 
+    /**
+     * @return number of leaves in the delta segment, appended after the indices were built
+     */
+    public int getDeltaSize() {
+        return namesDelta.length;
+    }
 
     /**
-     * Read input from database
+     * Metric tree over the combined distance of the base segment, built once on first use
      */
-    private void readDatabase() {
-        String filePath = "file/data.csv";
-        CSVReader reader;
-        int lineCount = 27;
-        namesDatabase = new String[lineCount];
-        double[] databaseCircularity = new double[lineCount];
-        double[] databaseAspectRatio = new double[lineCount];
-        double[] databaseRoundness = new double[lineCount];
-        double[] databaseSolidity = new double[lineCount];
-        efdDatabase = new double[lineCount][efdUser.length];
-        huDatabase = new double[lineCount][huUser.length];
-        try {
-            reader = new CSVReader(new FileReader(filePath), ',', '"', 1);
-            String[] nextLine;
-            int row = 0;
-            while ((nextLine = reader.readNext()) != null) {
-                namesDatabase[row] = nextLine[0];
-                databaseCircularity[row] = Double.parseDouble(nextLine[3]);
-                databaseAspectRatio[row] = Double.parseDouble(nextLine[4]);
-                databaseRoundness[row] = Double.parseDouble(nextLine[5]);
-                databaseSolidity[row] = Double.parseDouble(nextLine[6]);
-                for (int i = 7; i < (nextLine.length - 7); ++i) {
-                    efdDatabase[row][(i - 7)] = Double.parseDouble(nextLine[i]);
+    private VPTree getIndex() {
+        VPTree tree = indices.tree;
+        if (tree == null) {
+            synchronized (indices) {
+                tree = indices.tree;
+                if (tree == null) {
+                    //the combined distance is a weighted sum of two metrics
+                    tree = new VPTree(namesDatabase.length, new VPTree.Metric() {
+                        @Override
+                        public double distance(int a, int b) {
+                            return euclidean(efdDatabase, a * efdLength, efdDatabase, b * efdLength, efdLength) * efdFactor
+                                    + euclidean(huDatabase, a * huLength, huDatabase, b * huLength, huLength) * huFactor;
+                        }
+                    });
+                    indices.tree = tree;
                 }
-                for (int i = 34; i < nextLine.length; ++i) {
-                    huDatabase[row][(i - 34)] = Double.parseDouble(nextLine[i]);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Standardised, packed rows of the base segment in one precision, built once on first use
+     */
+    private QuantizedMatrix getQuantized(int precision) {
+        synchronized (indices.quantized) {
+            if (indices.quantized[precision] == null) {
+                indices.quantized[precision] = new QuantizedMatrix(efdDatabase, efdLength, huDatabase, huLength,
+                        namesDatabase.length, precision);
+            }
+            return indices.quantized[precision];
+        }
+    }
+
+    /**
+     * Contiguous partition of the rows, the partitions of all indices
+     * hold every row once and in the order of this database
+     *
+     * @param index partition, 0 to count - 1
+     * @param count number of partitions
+     * @return classifier over the rows of the partition with the same weights
+     */
+    public KNNPlant partition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Partition must be 0 to " + (count - 1));
+        }
+        int from = (int) ((long) index * size() / count);
+        int to = (int) ((long) (index + 1) * size() / count);
+        //the rows of each segment that fall into the partition
+        int baseFrom = Math.min(from, namesDatabase.length);
+        int baseTo = Math.min(to, namesDatabase.length);
+        int deltaFrom = from - baseFrom;
+        int deltaTo = to - baseTo;
+        return new KNNPlant(Arrays.copyOfRange(namesDatabase, baseFrom, baseTo),
+                rows(efdDatabase, efdLength, baseFrom, baseTo), rows(huDatabase, huLength, baseFrom, baseTo),
+                Arrays.copyOfRange(namesDelta, deltaFrom, deltaTo),
+                rows(efdDelta, efdLength, deltaFrom, deltaTo), rows(huDelta, huLength, deltaFrom, deltaTo),
+                efdLength, huLength, efdFactor, huFactor, new Indices());
+    }
+
+    /**
+     * View of the rows from to to of a row-major matrix, the values are shared
+     */
+    private static DoubleBuffer rows(DoubleBuffer matrix, int length, int from, int to) {
+        DoubleBuffer view = matrix.duplicate();
+        view.position(from * length);
+        view.limit(to * length);
+        return view.slice();
+    }
+
+    /**
+     * Inverted file with the default knobs, built once on first use
+     */
+    private IVFIndex getApproximate() {
+        IVFIndex ivf = indices.approximate;
+        if (ivf == null) {
+            synchronized (indices) {
+                ivf = indices.approximate;
+                if (ivf == null) {
+                    ivf = createApproximateIndex(0, 0, IVFIndex.DEFAULT_CODEBOOK_SIZE);
+                    indices.approximate = ivf;
                 }
-                row++;
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return ivf;
     }
 
+    /**
+     * Builds an approximate index over the standardised descriptors of the base segment,
+     * classifyApproximate() scans the delta segment exactly next to it
+     *
+     * @param lists        number of coarse lists, 0 for the square root of the database size
+     * @param subspaces    number of product quantization subspaces, 0 for one per 3 descriptors
+     * @param codebookSize codewords per subspace, 2 to 256
+     * @return index for classifyApproximate()
+     */
+    public IVFIndex createApproximateIndex(int lists, int subspaces, int codebookSize) {
+        return new IVFIndex(efdDatabase, efdLength, huDatabase, huLength, namesDatabase.length,
+                lists, subspaces, codebookSize);
+    }
+
+    public int getEfdLength() {
+        return efdLength;
+    }
+
+    public int getHuLength() {
+        return huLength;
+    }
 
     /**
-     * Calculates the Euclidean distance of user input to database entries, adds to results List
+     * Finds the nearest neighbours of an input leaf
+     * and gets majority vote to determinate species.
+     * Every row is ranked by its own combined distance, the EFD distance plus the
+     * weighted Hu moment distance of that row, equal distances in row order.
+     * Shepard's interpolation over all rows only scales the reported distances
+     * afterwards, so it never changes which rows are the closest
      *
-     * @param userInput     descriptors from user input leaf
-     * @param databaseInput descriptors from database
-     * @return distances    distances between descriptors
+     * @param efdUser EFD double array derived from user input leaf,
+     *                only the number of descriptors stored in the database is compared
+     * @param huUser  double array with huMoments
+     * @param k       number of closest matches to consider
+     * @return classification with the k closest matches, normalised distances, and the majority class
      */
-    private double[] calculateEuclideanDistance(double[] userInput, double[][] databaseInput, double factor) {
-        double[] distances = new double[namesDatabase.length];
+    public Classification classify(double[] efdUser, double[] huUser, int k) {
+        checkQuery(efdUser, huUser, k);
+        long start = PipelineMetrics.start();
+        k = Math.min(k, size());
+
+        double[] sums = new double[2];
+        TopK nearest = scan(efdUser, huUser, k, sums);
+        double shepard = calculateShepardsDistance(sums[0], sums[1]);
+
+        Classification classification = toClassification(nearest, 1 / shepard);
+        PipelineMetrics.recordScannedRows(size());
+        PipelineMetrics.stop(PipelineMetrics.CLASSIFY, start);
+        return classification;
+    }
 
-        for (int i = 0; i < namesDatabase.length; ++i) {
-            double dist = 0.0;
-            for (int j = 0; j < databaseInput[i].length; ++j) {
-                dist += Math.pow(databaseInput[i][j] - userInput[j], 2);
+    /**
+     * Finds the k closest rows of this database as a shard, a coordinator merges
+     * the results of all shards into the same classification as classify() over all rows
+     *
+     * @param efdUser EFD double array derived from user input leaf
+     * @param huUser  double array with huMoments
+     * @param k       number of closest matches
+     * @return closest matches with combined distances and the sums for Shepard's normalisation
+     */
+    @Override
+    public Neighbours search(double[] efdUser, double[] huUser, int k) {
+        checkQuery(efdUser, huUser, k);
+        k = Math.min(k, size());
+        double[] sums = new double[2];
+        TopK nearest = scan(efdUser, huUser, k, sums);
+        int[] rows = new int[nearest.size()];
+        double[] distances = new double[nearest.size()];
+        nearest.sorted(distances, rows);
+        String[] species = new String[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            species[i] = name(rows[i]);
+        }
+        PipelineMetrics.recordScannedRows(size());
+        return new Neighbours(size(), sums[0], sums[1], species, distances, rows);
+    }
+
+    /**
+     * Checks the descriptors and k of a single query
+     */
+    private void checkQuery(double[] efdUser, double[] huUser, int k) {
+        if (efdUser.length < efdLength || huUser.length < huLength) {
+            throw new IllegalArgumentException("Expected at least " + efdLength + " EFDs and "
+                    + huLength + " Hu moments");
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+    }
+
+    /**
+     * Calculates the combined Euclidean distance between efd and Hu moments and database in one pass,
+     * keeps the k smallest and sums up Shepard's weights for the normalisation
+     *
+     * @param sums receives the sum of w * d and the sum of w
+     * @return k closest rows with combined distances
+     */
+    private TopK scan(double[] efdUser, double[] huUser, int k, double[] sums) {
+        TopK nearest = new TopK(k);
+        double weightedSum = 0.0, weight = 0.0;
+        int rows = size();
+        for (int i = 0; i < rows; i++) {
+            double distance = combinedDistance(efdUser, 0, huUser, 0, i);
+            if (distance != 0.0) {
+                double wi = 1 / (distance * distance);
+                weight += wi;
+                weightedSum += wi * distance;
+            }
+            nearest.offer(distance, i);
+        }
+        sums[0] = weightedSum;
+        sums[1] = weight;
+        return nearest;
+    }
+
+    /**
+     * Finds the nearest neighbours of an input leaf with the metric tree
+     * and gets majority vote to determinate species.
+     * Same matches and majority class as classify() without scanning the whole database,
+     * distances are the combined distances since Shepard's normalisation needs all of them
+     *
+     * @param efdUser EFD double array derived from user input leaf
+     * @param huUser  double array with huMoments
+     * @param k       number of closest matches to consider
+     * @return classification with the k closest matches, combined distances, and the majority class
+     */
+    public Classification classifyIndexed(final double[] efdUser, final double[] huUser, int k) {
+        checkQuery(efdUser, huUser, k);
+        long start = PipelineMetrics.start();
+        k = Math.min(k, size());
+
+        final int[] scanned = new int[1];
+        TopK nearest = getIndex().search(new VPTree.Query() {
+            @Override
+            public double distance(int row) {
+                scanned[0]++;
+                return combinedDistance(efdUser, 0, huUser, 0, row);
             }
-            double distance = (Math.sqrt(dist)) * factor; //factor to equalise
-            distances[i] = distance;
-            //System.out.println("Euclidean distance " + namesDatabase[i] +" at "+i+": "+distance);
+        }, k);
+        //the delta segment is not in the tree
+        for (int row = namesDatabase.length; row < size(); row++) {
+            nearest.offer(combinedDistance(efdUser, 0, huUser, 0, row), row);
+        }
+        scanned[0] += namesDelta.length;
+        Classification classification = toClassification(nearest, 1.0);
+        PipelineMetrics.recordScannedRows(scanned[0]);
+        PipelineMetrics.stop(PipelineMetrics.CLASSIFY, start);
+        return classification;
+    }
+
+    /**
+     * Finds the nearest neighbours of an input leaf by the Euclidean distance of the
+     * z-score standardised EFDs and Hu moments, instead of the weighted combined distance,
+     * and gets majority vote to determinate species.
+     * The scan reads packed float32 or int8 rows, the candidates are re-ranked exactly
+     *
+     * @param efdUser   EFD double array derived from user input leaf
+     * @param huUser    double array with huMoments
+     * @param k         number of closest matches to consider
+     * @param precision QuantizedMatrix.FLOAT32 or QuantizedMatrix.INT8
+     * @return classification with the k closest matches, standardised distances, and the majority class
+     */
+    public Classification classifyQuantized(double[] efdUser, double[] huUser, int k, int precision) {
+        checkQuery(efdUser, huUser, k);
+        if (precision != QuantizedMatrix.FLOAT32 && precision != QuantizedMatrix.INT8) {
+            throw new IllegalArgumentException("Precision must be FLOAT32 or INT8");
+        }
+        long start = PipelineMetrics.start();
+        k = Math.min(k, size());
+
+        QuantizedMatrix matrix = getQuantized(precision);
+        TopK nearest = matrix.search(efdUser, huUser, k);
+        matrix.offerExact(efdUser, huUser, efdDelta, huDelta, namesDelta.length, namesDatabase.length, nearest);
+        Classification classification = toClassification(nearest, 1.0);
+        PipelineMetrics.recordScannedRows(size());
+        PipelineMetrics.stop(PipelineMetrics.CLASSIFY, start);
+        return classification;
+    }
+
+    /**
+     * Finds the approximate nearest neighbours of an input leaf by the Euclidean distance of the
+     * z-score standardised EFDs and Hu moments with the default inverted file
+     * and gets majority vote to determinate species
+     *
+     * @param efdUser EFD double array derived from user input leaf
+     * @param huUser  double array with huMoments
+     * @param k       number of closest matches to consider
+     * @param probes  number of inverted lists scanned, more probes find more of the true neighbours
+     * @return classification with the closest matches found, standardised distances, and the majority class
+     */
+    public Classification classifyApproximate(double[] efdUser, double[] huUser, int k, int probes) {
+        return classifyApproximate(efdUser, huUser, k, getApproximate(), probes);
+    }
+
+    /**
+     * Finds the approximate nearest neighbours of an input leaf with an index
+     * built by createApproximateIndex() and gets majority vote to determinate species
+     *
+     * @param efdUser EFD double array derived from user input leaf
+     * @param huUser  double array with huMoments
+     * @param k       number of closest matches to consider
+     * @param ivf     index over the base segment of this database
+     * @param probes  number of inverted lists scanned
+     * @return classification with the closest matches found, standardised distances, and the majority class
+     */
+    public Classification classifyApproximate(double[] efdUser, double[] huUser, int k, IVFIndex ivf, int probes) {
+        checkQuery(efdUser, huUser, k);
+        if (ivf.size() != namesDatabase.length) {
+            throw new IllegalArgumentException("The index was built for another database");
         }
-        return distances;
+        long start = PipelineMetrics.start();
+        k = Math.min(k, size());
+
+        TopK nearest = ivf.search(efdUser, huUser, k, probes);
+        ivf.offerExact(efdUser, huUser, efdDelta, huDelta, namesDelta.length, namesDatabase.length, nearest);
+        Classification classification = toClassification(nearest, 1.0);
+        PipelineMetrics.stop(PipelineMetrics.CLASSIFY, start);
+        return classification;
     }
 
     /**
-     * Calculates Shepard's interpolation for user input and database leaf
-     * loops through all database samples
-     * adds results to resultsList
+     * Classifies a batch of input leaves, same result per leaf as classify().
+     * Distances are computed in blocks of queries and database rows that stay in cache,
+     * query blocks are spread over all cores with fork-join
      *
-     * @param userInput     descriptors from user input leaf
-     * @param databaseInput descriptors from database
-     * @return distances    distances between descriptors
-     */
-    private double[] calculateShepardsDistance(double[] eucDistance) {
-        double[] distances = new double[eucDistance.length];
-
-        for (int j = 0; j < eucDistance.length; j++) {
-            double weight = 0.0, sum = 0.0;
-            double distance = 0;
-            for (int i = 0; i < eucDistance.length; i++) {
-                double r = Math.abs(eucDistance[i]);    //d(x, xi)
-                if (r == 0.0) {
-                    distance = eucDistance[i];
+     * @param efdUsers EFD double arrays of the input leaves, one row per leaf
+     * @param huUsers  Hu moments of the input leaves, one row per leaf
+     * @param k        number of closest matches to consider
+     * @return classifications in the order of the input leaves
+     */
+    public Classification[] classifyBatch(double[][] efdUsers, double[][] huUsers, int k) {
+        if (efdUsers.length != huUsers.length) {
+            throw new IllegalArgumentException("Expected as many EFD rows as Hu moment rows");
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        long start = PipelineMetrics.start();
+        int m = efdUsers.length;
+        k = Math.min(k, size());
+
+        //pack the queries into contiguous row-major matrices
+        double[] efdQueries = new double[m * efdLength];
+        double[] huQueries = new double[m * huLength];
+        for (int q = 0; q < m; q++) {
+            if (efdUsers[q].length < efdLength || huUsers[q].length < huLength) {
+                throw new IllegalArgumentException("Expected at least " + efdLength + " EFDs and "
+                        + huLength + " Hu moments for leaf " + q);
+            }
+            System.arraycopy(efdUsers[q], 0, efdQueries, q * efdLength, efdLength);
+            System.arraycopy(huUsers[q], 0, huQueries, q * huLength, huLength);
+        }
+
+        Classification[] classifications = new Classification[m];
+        ForkJoinPool.commonPool().invoke(new BatchTask(efdQueries, huQueries, k, 0, m, classifications));
+        for (int q = 0; q < m; q++) {
+            PipelineMetrics.recordScannedRows(size());
+        }
+        PipelineMetrics.stop(PipelineMetrics.CLASSIFY_BATCH, start);
+        return classifications;
+    }
+
+    /**
+     * Fork-join task classifying a range of batch queries, splits until QUERY_BLOCK queries are left
+     */
+    private class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final double[] efdQueries;
+        private final double[] huQueries;
+        private final int k;
+        private final int from;
+        private final int to;
+        private final Classification[] classifications;
+
+        BatchTask(double[] efdQueries, double[] huQueries, int k, int from, int to, Classification[] classifications) {
+            this.efdQueries = efdQueries;
+            this.huQueries = huQueries;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.classifications = classifications;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > QUERY_BLOCK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(efdQueries, huQueries, k, from, middle, classifications),
+                        new BatchTask(efdQueries, huQueries, k, middle, to, classifications));
+                return;
+            }
+            int count = to - from;
+            TopK[] nearest = new TopK[count];
+            double[] weightedSum = new double[count];
+            double[] weight = new double[count];
+            for (int q = 0; q < count; q++) {
+                nearest[q] = new TopK(k);
+            }
+
+            //each block of database rows is scanned for all queries of this task while it is in cache
+            int rows = size();
+            for (int blockStart = 0; blockStart < rows; blockStart += DATABASE_BLOCK) {
+                int blockEnd = Math.min(blockStart + DATABASE_BLOCK, rows);
+                for (int q = 0; q < count; q++) {
+                    int query = from + q;
+                    for (int i = blockStart; i < blockEnd; i++) {
+                        double distance = combinedDistance(efdQueries, query * efdLength, huQueries, query * huLength, i);
+                        if (distance != 0.0) {
+                            double wi = 1 / (distance * distance);
+                            weight[q] += wi;
+                            weightedSum[q] += wi * distance;
+                        }
+                        nearest[q].offer(distance, i);
+                    }
                 }
-                double wi = 1 / (Math.pow(r, 2));
-                weight += wi;
-                sum += wi * eucDistance[i];
             }
-            distance = sum / weight;
-            distances[j] = distance;
-            //System.out.println("Interpolated distance at "+j+": "+distance);
+            for (int q = 0; q < count; q++) {
+                classifications[from + q] = toClassification(nearest[q],
+                        1 / calculateShepardsDistance(weightedSum[q], weight[q]));
+            }
+        }
+    }
+
+    /**
+     * Gets species of the k nearest instances and their majority vote,
+     * only the selected rows are turned into results
+     *
+     * @param nearest k nearest rows with combined distances
+     * @param scale   factor for the reported distances
+     * @return classification with the k closest matches and the majority class
+     */
+    private Classification toClassification(TopK nearest, double scale) {
+        int k = nearest.size();
+        int[] rows = new int[k];
+        double[] distancesClosestMatch = new double[k];
+        nearest.sorted(distancesClosestMatch, rows);
+
+        String[] speciesClosestMatch = new String[k];
+        List<Result> resultList = new ArrayList<Result>(k);
+        for (int i = 0; i < k; i++) {
+            speciesClosestMatch[i] = name(rows[i]);
+            resultList.add(new Result(speciesClosestMatch[i], distancesClosestMatch[i], rows[i]));
+            distancesClosestMatch[i] *= scale;
+        }
+
+        //Get majority vote
+        String majClass = findMajorityClass(speciesClosestMatch, resultList, k);
+        return new Classification(speciesClosestMatch, distancesClosestMatch, majClass);
+    }
+
+    /**
+     * @return number of leaves in the database, both segments
+     */
+    public int size() {
+        return namesDatabase.length + namesDelta.length;
+    }
+
+    /**
+     * Species of a row of either segment
+     */
+    private String name(int row) {
+        return row < namesDatabase.length ? namesDatabase[row] : namesDelta[row - namesDatabase.length];
+    }
+
+
+    /**
+     * Calculates the combined distance of user input to one database entry,
+     * Euclidean distances of EFDs and Hu moments with factors to equalise them
+     *
+     * @param efdUser   descriptors from user input leaf
+     * @param efdOffset index of the first descriptor in efdUser
+     * @param huUser    Hu moments from user input leaf
+     * @param huOffset  index of the first Hu moment in huUser
+     * @param row       database leaf, rows after the base segment are in the delta segment
+     * @return distance between user input leaf and database leaf
+     */
+    private double combinedDistance(double[] efdUser, int efdOffset, double[] huUser, int huOffset, int row) {
+        if (row >= namesDatabase.length) {
+            row -= namesDatabase.length;
+            return euclidean(efdDelta, row * efdLength, efdUser, efdOffset, efdLength) * efdFactor
+                    + euclidean(huDelta, row * huLength, huUser, huOffset, huLength) * huFactor;
+        }
+        return euclidean(efdDatabase, row * efdLength, efdUser, efdOffset, efdLength) * efdFactor
+                + euclidean(huDatabase, row * huLength, huUser, huOffset, huLength) * huFactor;
+    }
+
+    /**
+     * Euclidean distance of a database row and a descriptor vector stored in a (row-major) array
+     */
+    private static double euclidean(DoubleBuffer a, int aOffset, double[] b, int bOffset, int length) {
+        double dist = 0.0;
+        for (int j = 0; j < length; ++j) {
+            double d = a.get(aOffset + j) - b[bOffset + j];
+            dist += d * d;
+        }
+        return Math.sqrt(dist);
+    }
+
+    /**
+     * Euclidean distance of two database rows
+     */
+    private static double euclidean(DoubleBuffer a, int aOffset, DoubleBuffer b, int bOffset, int length) {
+        double dist = 0.0;
+        for (int j = 0; j < length; ++j) {
+            double d = a.get(aOffset + j) - b.get(bOffset + j);
+            dist += d * d;
         }
-        return distances;
+        return Math.sqrt(dist);
+    }
+
+    /**
+     * Calculates Shepard's interpolation of the distances to all database samples
+     * from the sums of the weights w = 1 / d^2 and of w * d, it is the same for every sample,
+     * so it is computed once per query and used to normalise the distances.
+     * Exact matches (d = 0) are left out of the sums, without other distances the
+     * normalisation is 1
+     *
+     * @param weightedSum sum of w * d over all database samples
+     * @param weight      sum of w over all database samples
+     * @return distance   interpolated distance
+     */
+    static double calculateShepardsDistance(double weightedSum, double weight) {
+        if (weight == 0.0 || weightedSum == 0.0) {
+            return 1.0;
+        }
+        return weightedSum / weight;
+    }
+
+    /**
+     * Majority vote of the closest matches, the same vote classify() takes
+     *
+     * @param species   species of the closest matches, sorted by ascending distance
+     * @param distances distances of the closest matches
+     * @return majority class
+     */
+    static String vote(String[] species, double[] distances) {
+        List<Result> resultList = new ArrayList<Result>(species.length);
+        for (int i = 0; i < species.length; i++) {
+            resultList.add(new Result(species[i], distances[i], i));
+        }
+        return findMajorityClass(species, resultList, species.length);
     }
 
     /**
@@ -193,9 +766,13 @@ public class KNNPlant {
      *
      * @param namesKList an array of strings of species names
      * @param k          the number of selected samples
-     * @return the String with the smallest distance
+     * @return the String with the smallest distance, null without samples
      */
-    private String findMajorityClass(String[] namesKList, List<Result> resultList, int k) {
+    private static String findMajorityClass(String[] namesKList, List<Result> resultList, int k) {
+        if (namesKList.length == 0) {
+            //empty database or partition
+            return null;
+        }
         //add the String array to a HashSet to get unique String values and convert the HashSet back to array
         Set<String> h = new HashSet<String>(Arrays.asList(namesKList));
         String[] uniqueValues = h.toArray(new String[0]);
@@ -236,13 +813,11 @@ public class KNNPlant {
                     break;
                 }
             }
-            System.out.println("One majority class, index is: " + index);
             return uniqueValues[index];
 
         } else {
             //find index of species with max occurrence
             int[] ix = new int[freq];//array of indices of modes
-            System.out.println("multiple majority classes: " + freq + " classes");
             int ixi = 0;
             for (int counter = 0; counter < counts.length; counter++) {
                 if (counts[counter] == max) {
@@ -277,32 +852,57 @@ public class KNNPlant {
                 }
             }
 
-            System.out.println("class with index " + minAverageDistIndex + ": " + averageDistSpecies[minAverageDistIndex]);
             return averageDistSpecies[minAverageDistIndex];
         }//else
     }//method majority class
 
 
     /**
-     * simple helper classes for results and comparison
+     * simple helper classes for results
      */
 
+    /**
+     * Result of one classification: k closest matches and majority vote.
+     * The unit of the distances depends on the path that found the matches,
+     * only distances of the same path can be compared:
+     * classify(), classifyBatch(), ShardCoordinator: combined distance divided by
+     * Shepard's interpolation of the combined distances to all rows of the database;
+     * classifyIndexed(): combined distance, EFD distance * efdFactor + Hu distance * huFactor;
+     * classifyQuantized(), classifyApproximate(): Euclidean distance of the z-score
+     * standardised EFDs and Hu moments (QuantizedMatrix)
+     */
+    public static class Classification {
+        public final String[] species;     // species of the k closest matches
+        public final double[] distances;   // distances of the k closest matches, unit see above
+        public final String majorityClass; // majority vote of the k closest matches, null for an empty database
+
+        public Classification(String[] species, double[] distances, String majorityClass) {
+            this.species = species;
+            this.distances = distances;
+            this.majorityClass = majorityClass;
+        }
+
+        //print closest matches and classification result
+        public void print() {
+            System.out.println("\n_________K = " + species.length + " CLOSTEST MATCHES__________");
+            for (int i = 0; i < species.length; i++) {
+                System.out.println(species[i] + "\t" + distances[i]);
+            }
+            System.out.println("\n_________CLASSIFICATION RESULT___________");
+            System.out.println("Combined Class of new instance is: " + majorityClass);
+        }
+    }
+
     //simple class to model results (name and results)
     static class Result {
         String speciesName;
         double distance;
+        int row;
 
-        public Result(String speciesName, double distance) {
+        public Result(String speciesName, double distance, int row) {
             this.speciesName = speciesName;
             this.distance = distance;
-        }
-    }
-
-    //simple comparator class used to compare results via distances
-    static class DistanceComparator implements Comparator<Result> {
-        @Override
-        public int compare(Result a, Result b) {
-            return a.distance < b.distance ? -1 : a.distance == b.distance ? 0 : 1;
+            this.row = row;
         }
     }
 }
\ No newline at end of file
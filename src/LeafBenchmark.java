@@ -0,0 +1,372 @@
+/**
+ * LeafBenchmark This class is a smoke timer for the hot paths of the plant leaf recognition:
+ * Hu moments of the bundled images from their pixels and from the leaf outline, EFD for several contour lengths and
+ * numbers of descriptors, brute force k-NN (double, float32 and int8 rows)
+ * on synthetic databases of 10^2 to 10^6 leaves, the approximate k-NN of the
+ * inverted file on the largest one with its recall against brute force for
+ * several numbers of probes, and the latency of the whole pipeline for one image
+ * <p>
+ * Every timer runs warmup iterations first so the JIT has compiled the
+ * hot path, then measurement iterations of a fixed duration. The result is the
+ * mean time per operation with its standard deviation over the measurement
+ * iterations. Results of the operations are consumed so they cannot be
+ * removed as dead code. The synthetic databases are built from the rows of
+ * the reference database with noise, so the Hu moments keep their scale.
+ * <p>
+ * It is a hand-written loop, not a benchmark suite like JMH: all timers run
+ * one after the other in one JVM without forks, so the profile the JIT
+ * collected for one operation carries over to the next ones, and there is no
+ * protection against constant folding or dead code beyond the consumed
+ * results. The numbers are good for a quick look and for comparing two
+ * builds on the same machine when they differ clearly, not for absolute
+ * figures or differences of a few percent. The same operations run as JMH
+ * benchmarks in bench/benchmark, with forks and blackholes, see bench/build.sh.
+ * <p>
+ * Runnable jar:
+ * javac -cp "lib/*" -d out src/*.java
+ * jar cfe benchmark.jar LeafBenchmark -C out .
+ * java -Djava.awt.headless=true -Xmx4g -cp "benchmark.jar:lib/*" LeafBenchmark [filter] [largest size exponent]
+ *
+ * @author Karina Becker
+ */
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+public class LeafBenchmark {
+    private static final String[] IMAGES = {
+            "file/leaf.JPG", "file/10/iPAD2_C10_EX01.JPG", "file/11/iPAD2_C11_EX01.JPG", "file/12/iPAD2_C12_EX01.JPG"};
+    private static final int[] CONTOUR_POINTS = {128, 512, 2048};
+    private static final int[] EFD_COUNTS = {10, 30, 60};
+    private static final int MAX_SIZE_EXPONENT = 6;   // largest synthetic database: 10^6 leaves
+    private static final int QUERIES = 64;            // synthetic queries cycled through by the k-NN benchmark
+    private static final int K = 5;
+    private static final double NOISE = 0.05;         // relative noise of the synthetic leaves
+    private static final int[] PROBES = {1, 2, 4, 8, 16, 32};
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    private final String filter;
+    private long sink;                                // consumes the results of the operations
+
+    /**
+     * One benchmarked operation, the setup is done before the harness runs it
+     */
+    interface Operation {
+        Object run() throws IOException;
+    }
+
+    /**
+     * Constructor LeafBenchmark
+     *
+     * @param warmupIterations      iterations run before measuring
+     * @param measurementIterations iterations measured
+     * @param iterationMillis       duration of one iteration
+     * @param filter                only benchmarks whose name contains it run, empty runs all
+     */
+    public LeafBenchmark(int warmupIterations, int measurementIterations, long iterationMillis, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+        this.filter = filter;
+    }
+
+    /**
+     * Hu moments of the bundled images, the processor is read in place,
+     * and of the binary leaf shape from its traced outline
+     */
+    public void benchmarkMoments() throws IOException {
+        LeafPipeline pipeline = new LeafPipeline();
+        for (String image : IMAGES) {
+            final ImageProcessor ip = ImageIngest.getMomentSource(pipeline.open(image));
+            run("moments/" + image, new Operation() {
+                @Override
+                public Object run() {
+                    return new ImageMoments(ip).getAllMoments();
+                }
+            });
+        }
+        for (String image : IMAGES) {
+            ImagePlus imp = pipeline.open(image);
+            pipeline.preparation(imp);
+            LeafPipeline.Particle particle = pipeline.findLargestArea(imp);
+            if (particle == null) {
+                throw new IOException("No leaf found in " + image);
+            }
+            final Polygon polygon = particle.polygon;
+            run("moments/polygon/" + image, new Operation() {
+                @Override
+                public Object run() {
+                    return new PolygonMoments(polygon).getAllMoments();
+                }
+            });
+        }
+    }
+
+    /**
+     * EFD of the outline of the bundled leaf, resampled to several contour lengths
+     */
+    public void benchmarkEFD() throws IOException {
+        LeafPipeline pipeline = new LeafPipeline();
+        ImagePlus imp = pipeline.open(IMAGES[0]);
+        pipeline.preparation(imp);
+        LeafPipeline.Particle particle = pipeline.findLargestArea(imp);
+        if (particle == null) {
+            throw new IOException("No leaf found in " + IMAGES[0]);
+        }
+        for (int points : CONTOUR_POINTS) {
+            final double[][] xy = ContourResampler.resample(particle.polygon, points);
+            for (final int efdCount : EFD_COUNTS) {
+                run("efd/points=" + points + "/nFD=" + efdCount, new Operation() {
+                    @Override
+                    public Object run() {
+                        return new EFD(xy[0], xy[1], efdCount).getEfdNormalised();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Brute force k-NN on synthetic databases of 10^2 up to 10^maxExponent leaves
+     *
+     * @param maxExponent exponent of the largest database
+     */
+    public void benchmarkKNN(int maxExponent) throws IOException {
+        List<LeafSample> reference = FeatureStore.readCsv(KNNPlant.DEFAULT_DATABASE);
+        Random random = new Random(42);
+        final double[][] efdQueries = new double[QUERIES][];
+        final double[][] huQueries = new double[QUERIES][];
+        synthesizeQueries(reference, random, efdQueries, huQueries);
+        for (int exponent = 2; exponent <= maxExponent; exponent++) {
+            int size = (int) Math.pow(10, exponent);
+            String name = "knn/n=" + size;
+            if (!selected(name)) {
+                continue;
+            }
+            final KNNPlant classifier = synthesizeDatabase(reference, random, size);
+            run(name, new Operation() {
+                private int q;
+
+                @Override
+                public Object run() {
+                    q = (q + 1) % QUERIES;
+                    return classifier.classify(efdQueries[q], huQueries[q], K);
+                }
+            });
+            for (final int precision : new int[]{QuantizedMatrix.FLOAT32, QuantizedMatrix.INT8}) {
+                run(name + (precision == QuantizedMatrix.FLOAT32 ? "/float32" : "/int8"), new Operation() {
+                    private int q;
+
+                    @Override
+                    public Object run() {
+                        q = (q + 1) % QUERIES;
+                        return classifier.classifyQuantized(efdQueries[q], huQueries[q], K, precision);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Approximate k-NN of the inverted file on a synthetic database of 10^exponent leaves,
+     * recall@K against the exhaustive search of the standardised descriptors
+     * and latency for several numbers of probes
+     *
+     * @param exponent exponent of the database size
+     */
+    public void benchmarkApproximate(int exponent) throws IOException {
+        int size = (int) Math.pow(10, exponent);
+        String name = "ivf/n=" + size;
+        if (!selected(name)) {
+            return;
+        }
+        List<LeafSample> reference = FeatureStore.readCsv(KNNPlant.DEFAULT_DATABASE);
+        Random random = new Random(42);
+        final double[][] efdQueries = new double[QUERIES][];
+        final double[][] huQueries = new double[QUERIES][];
+        synthesizeQueries(reference, random, efdQueries, huQueries);
+        final KNNPlant classifier = synthesizeDatabase(reference, random, size);
+        long start = System.nanoTime();
+        final IVFIndex ivf = classifier.createApproximateIndex(0, 0, IVFIndex.DEFAULT_CODEBOOK_SIZE);
+        System.out.println(String.format(Locale.US, "%s: %d lists, %d subspaces, %d codewords, %.1f MB, built in %.2f s",
+                name, ivf.getLists(), ivf.getSubspaces(), ivf.getCodebookSize(), ivf.getIndexBytes() / 1e6,
+                (System.nanoTime() - start) / 1e9));
+
+        int[][] exact = new int[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            exact[q] = rows(ivf.searchExhaustive(efdQueries[q], huQueries[q], K));
+        }
+        for (final int probes : PROBES) {
+            if (probes > ivf.getLists()) {
+                break;
+            }
+            int found = 0;
+            for (int q = 0; q < QUERIES; q++) {
+                int[] approximate = rows(ivf.search(efdQueries[q], huQueries[q], K, probes));
+                for (int row : approximate) {
+                    for (int exactRow : exact[q]) {
+                        if (row == exactRow) {
+                            found++;
+                            break;
+                        }
+                    }
+                }
+            }
+            System.out.println(String.format(Locale.US, "%-40s recall@%d %.4f",
+                    name + "/probes=" + probes, K, found / (double) (QUERIES * K)));
+            run(name + "/probes=" + probes, new Operation() {
+                private int q;
+
+                @Override
+                public Object run() {
+                    q = (q + 1) % QUERIES;
+                    return classifier.classifyApproximate(efdQueries[q], huQueries[q], K, ivf, probes);
+                }
+            });
+        }
+    }
+
+    /**
+     * Latency of the whole pipeline for one image: open, Hu moments,
+     * preparation, largest particle, EFD and classification
+     */
+    public void benchmarkPipeline() throws IOException {
+        final LeafPipeline pipeline = new LeafPipeline();
+        final KNNPlant classifier = new KNNPlant();
+        run("pipeline/" + IMAGES[0], new Operation() {
+            @Override
+            public Object run() throws IOException {
+                return pipeline.classify(IMAGES[0], classifier, K);
+            }
+        });
+    }
+
+    /**
+     * Runs the warmup and measurement iterations of one benchmark and prints the result
+     *
+     * @param name      benchmark name
+     * @param operation benchmarked operation
+     */
+    void run(String name, Operation operation) throws IOException {
+        if (!selected(name)) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] nanosPerOp = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            nanosPerOp[i] = iteration(operation);
+        }
+        double mean = 0.0;
+        for (double value : nanosPerOp) {
+            mean += value;
+        }
+        mean /= nanosPerOp.length;
+        double variance = 0.0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean);
+        }
+        double deviation = nanosPerOp.length > 1 ? Math.sqrt(variance / (nanosPerOp.length - 1)) : 0.0;
+        System.out.println(String.format(Locale.US, "%-40s %14.3f +- %10.3f us/op", name, mean / 1000, deviation / 1000));
+    }
+
+    /**
+     * Runs the operation until the iteration time is over
+     *
+     * @return mean time per operation in nanoseconds
+     */
+    private double iteration(Operation operation) throws IOException {
+        long start = System.nanoTime();
+        long end = start + iterationNanos;
+        long operations = 0;
+        long now;
+        do {
+            sink += System.identityHashCode(operation.run());
+            operations++;
+            now = System.nanoTime();
+        } while (now < end);
+        return (now - start) / (double) operations;
+    }
+
+    private boolean selected(String name) {
+        return name.contains(filter);
+    }
+
+    private static int[] rows(TopK nearest) {
+        double[] distances = new double[nearest.size()];
+        int[] rows = new int[nearest.size()];
+        nearest.sorted(distances, rows);
+        return rows;
+    }
+
+    static void synthesizeQueries(List<LeafSample> reference, Random random,
+                                          double[][] efdQueries, double[][] huQueries) {
+        for (int q = 0; q < efdQueries.length; q++) {
+            LeafSample query = synthesize(reference, random, 0, q);
+            efdQueries[q] = query.efd;
+            huQueries[q] = query.hu;
+        }
+    }
+
+    static KNNPlant synthesizeDatabase(List<LeafSample> reference, Random random, int size)
+            throws IOException {
+        List<LeafSample> samples = new ArrayList<LeafSample>(size);
+        for (int i = 0; i < size; i++) {
+            samples.add(synthesize(reference, random, i, i));
+        }
+        //the classifier keeps its own copy
+        return new KNNPlant(FeatureStore.fromSamples(samples));
+    }
+
+    /**
+     * Synthetic leaf: a reference row with relative noise on every descriptor
+     */
+    private static LeafSample synthesize(List<LeafSample> reference, Random random, int row, int number) {
+        LeafSample base = reference.get(row % reference.size());
+        double[] efd = new double[base.efd.length];
+        for (int i = 0; i < efd.length; i++) {
+            efd[i] = base.efd[i] * (1 + NOISE * random.nextGaussian());
+        }
+        double[] hu = new double[base.hu.length];
+        for (int i = 0; i < hu.length; i++) {
+            hu[i] = base.hu[i] * (1 + NOISE * random.nextGaussian());
+        }
+        return new LeafSample(base.species, number, base.area, base.circularity, base.aspectRatio,
+                base.roundness, base.solidity, efd, hu);
+    }
+
+    /**
+     * Runs the benchmarks
+     * optional arguments: name filter, exponent of the largest synthetic database,
+     * warmup iterations, measurement iterations and iteration time in milliseconds
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        String filter = args.length > 0 ? args[0] : "";
+        int maxExponent = args.length > 1 ? Integer.parseInt(args[1]) : MAX_SIZE_EXPONENT;
+        int warmup = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int measurement = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        long millis = args.length > 4 ? Long.parseLong(args[4]) : 1000;
+        LeafBenchmark benchmark = new LeafBenchmark(warmup, measurement, millis, filter);
+        System.out.println(String.format(Locale.US, "%-40s %14s    %10s", "Benchmark", "Mean", "Deviation"));
+        benchmark.benchmarkMoments();
+        benchmark.benchmarkEFD();
+        benchmark.benchmarkKNN(maxExponent);
+        benchmark.benchmarkApproximate(maxExponent);
+        benchmark.benchmarkPipeline();
+        //print the sink so the consumed results stay live
+        if (benchmark.sink == 42) {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ * LeafDatabase This class holds the reference database of a running
+ * service and adds new labelled leaves without reloading it
+ * <p>
+ * Readers take the current classifier with getClassifier(), an immutable
+ * snapshot that stays consistent for as long as they use it. New leaves are
+ * appended to the database file first, then a new snapshot with the
+ * additional rows is published by swapping an atomic reference. Queries never
+ * wait for an ingestion, ingestions are serialised among each other.
+ * <p>
+ * Nothing is rewritten per leaf: a csv file gets new rows in the column order
+ * of its header, a binary store gets them in an append-only delta file next
+ * to it (store path + ".delta") that is read back when the database is opened
+ * again. The snapshot keeps the new leaves in its delta segment, so the
+ * indices of the base segment survive the ingestion (see KNNPlant). Once
+ * DELTA_ROWS leaves have been added the base segment is rebuilt: a binary
+ * store is rewritten with all rows, atomically replaced and mapped again, and
+ * the delta file is emptied.
+ *
+ * @author Karina Becker
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.opencsv.CSVReader;
+
+public class LeafDatabase {
+    private static final String CSV_SHAPE_HEADER = "Species,Number,Area,Circularity,Roundness,Solidity";
+
+    private static final String CSV_LINE_END = "\r\n";
+    public static final String DELTA_EXTENSION = ".delta";
+    public static final int DELTA_ROWS = 1024;      // leaves added before the base segment is rebuilt
+    private static final int DELTA_MAGIC = 0x4C44454C; // "LDEL"
+    private static final int DELTA_VERSION = 1;
+
+    private final String filePath;       // null if the database is in memory only
+    private final AtomicReference<KNNPlant> snapshot;
+    private final Map<String, Integer> lastNumbers = new HashMap<String, Integer>();
+    private FeatureStore store;          // binary store: base segment of the snapshot
+    private final List<LeafSample> delta = new ArrayList<LeafSample>(); // binary store: rows of the delta file
+
+    /**
+     * Opens a database file, new leaves are written to it
+     *
+     * @param filePath path of the csv database or binary feature store
+     * @throws IOException if the database cannot be read
+     */
+    public LeafDatabase(String filePath) throws IOException {
+        this.filePath = filePath;
+        FeatureStore opened = FeatureStore.open(filePath);
+        for (int row = 0; row < opened.size(); row++) {
+            countNumber(opened.get(row));
+        }
+        KNNPlant classifier = new KNNPlant(opened);
+        if (isBinary()) {
+            store = opened;
+            readDelta();
+            if (!delta.isEmpty()) {
+                classifier = classifier.append(delta);
+                for (LeafSample sample : delta) {
+                    countNumber(sample);
+                }
+            }
+        }
+        snapshot = new AtomicReference<KNNPlant>(classifier);
+    }
+
+    /**
+     * Database in memory only, new leaves are not written
+     *
+     * @param classifier initial classifier
+     */
+    public LeafDatabase(KNNPlant classifier) {
+        this.filePath = null;
+        snapshot = new AtomicReference<KNNPlant>(classifier);
+    }
+
+    /**
+     * @return classifier over all leaves added so far, immutable
+     */
+    public KNNPlant getClassifier() {
+        return snapshot.get();
+    }
+
+    /**
+     * Adds one leaf
+     *
+     * @param features extracted features of the leaf
+     * @param species  species label
+     * @return the added sample, numbered after the last sample of its species
+     * @throws IOException if the database file cannot be written
+     */
+    public synchronized LeafSample add(LeafFeatures features, String species) throws IOException {
+        Integer last = lastNumbers.get(species);
+        LeafSample sample = features.toSample(species, last == null ? 1 : last + 1);
+        add(Collections.singletonList(sample));
+        return sample;
+    }
+
+    /**
+     * Adds leaves, they are written to the database file and then published in one new snapshot
+     *
+     * @param newSamples labelled leaves, with at least as many EFDs and Hu moments as the database,
+     *                   further descriptors are dropped
+     * @throws IOException if the database file cannot be written, the snapshot is unchanged then
+     */
+    public synchronized void add(List<LeafSample> newSamples) throws IOException {
+        KNNPlant current = snapshot.get();
+        List<LeafSample> trimmed = new ArrayList<LeafSample>(newSamples.size());
+        for (LeafSample sample : newSamples) {
+            trimmed.add(trim(sample, current.getEfdLength(), current.getHuLength()));
+        }
+        KNNPlant next = current.append(trimmed);
+        if (filePath == null) {
+            next = next.getDeltaSize() >= DELTA_ROWS ? next.compact() : next;
+        } else if (isBinary()) {
+            appendDelta(trimmed);
+            delta.addAll(trimmed);
+            if (next.getDeltaSize() >= DELTA_ROWS) {
+                try {
+                    next = compactStore(current);
+                } catch (IOException e) {
+                    //the leaves are safe in the delta file, the next ingestion tries again
+                    System.err.println("Cannot rewrite feature store: " + e.getMessage());
+                }
+            }
+        } else {
+            appendCsv(trimmed, current.getEfdLength(), current.getHuLength());
+            next = next.getDeltaSize() >= DELTA_ROWS ? next.compact() : next;
+        }
+        for (LeafSample sample : trimmed) {
+            countNumber(sample);
+        }
+        snapshot.set(next);
+    }
+
+    public int size() {
+        return snapshot.get().size();
+    }
+
+    private void countNumber(LeafSample sample) {
+        Integer last = lastNumbers.get(sample.species);
+        if (last == null || sample.number > last) {
+            lastNumbers.put(sample.species, sample.number);
+        }
+    }
+
+    private boolean isBinary() {
+        return filePath.endsWith(FeatureStore.EXTENSION);
+    }
+
+    /**
+     * Sample with exactly the number of descriptors of the database
+     */
+    private static LeafSample trim(LeafSample sample, int efdLength, int huLength) {
+        if (sample.efd.length < efdLength || sample.hu.length < huLength) {
+            throw new IllegalArgumentException("Expected at least " + efdLength + " EFDs and "
+                    + huLength + " Hu moments");
+        }
+        if (sample.efd.length == efdLength && sample.hu.length == huLength) {
+            return sample;
+        }
+        double[] efd = new double[efdLength];
+        double[] hu = new double[huLength];
+        System.arraycopy(sample.efd, 0, efd, 0, efdLength);
+        System.arraycopy(sample.hu, 0, hu, 0, huLength);
+        return new LeafSample(sample.species, sample.number, sample.area, sample.circularity, sample.aspectRatio,
+                sample.roundness, sample.solidity, efd, hu);
+    }
+
+    /**
+     * Appends rows in the column order of the header of the file, a new file
+     * gets the header of the bundled database, which has no aspect ratio
+     * column. Lines end with CRLF like the bundled database.
+     */
+    private void appendCsv(List<LeafSample> rows, int efdLength, int huLength) throws IOException {
+        File file = new File(filePath);
+        StringBuilder sb = new StringBuilder();
+        String[] header = readHeader(file);
+        if (header == null) {
+            StringBuilder line = new StringBuilder(CSV_SHAPE_HEADER);
+            for (int i = 1; i <= efdLength; i++) {
+                line.append(",EFD ").append(i);
+            }
+            for (int i = 1; i <= huLength; i++) {
+                line.append(",Hu ").append(i);
+            }
+            header = line.toString().split(",");
+            sb.append(line).append(CSV_LINE_END);
+        }
+        int efdColumns = 0;
+        int huColumns = 0;
+        for (String column : header) {
+            if (column.trim().startsWith("EFD")) {
+                efdColumns++;
+            } else if (column.trim().startsWith("Hu")) {
+                huColumns++;
+            }
+        }
+        if (efdColumns != efdLength || huColumns != huLength) {
+            throw new IOException("Database " + filePath + " has " + efdColumns + " EFD and " + huColumns
+                    + " Hu columns, expected " + efdLength + " and " + huLength);
+        }
+        for (LeafSample sample : rows) {
+            int efd = 0;
+            int hu = 0;
+            for (int c = 0; c < header.length; c++) {
+                String column = header[c].trim();
+                if (c > 0) {
+                    sb.append(',');
+                }
+                if (column.startsWith("EFD")) {
+                    sb.append(sample.efd[efd++]);
+                } else if (column.startsWith("Hu")) {
+                    sb.append(sample.hu[hu++]);
+                } else if (column.equals("Species")) {
+                    sb.append(sample.species);
+                } else if (column.equals("Number")) {
+                    sb.append(sample.number);
+                } else if (column.equals("Area")) {
+                    sb.append(sample.area);
+                } else if (column.equals("Circularity")) {
+                    sb.append(sample.circularity);
+                } else if (column.equals("Aspect Ratio")) {
+                    sb.append(sample.aspectRatio);
+                } else if (column.equals("Roundness")) {
+                    sb.append(sample.roundness);
+                } else if (column.equals("Solidity")) {
+                    sb.append(sample.solidity);
+                }
+            }
+            sb.append(CSV_LINE_END);
+        }
+        //one write of all rows, a failed write leaves no partial snapshot
+        Writer writer = new FileWriter(file, true);
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Rows of the delta file, a file written for another version of the store
+     * (it was compacted before the delta file could be emptied) is emptied,
+     * a truncated last record is dropped
+     */
+    private void readDelta() throws IOException {
+        File file = new File(filePath + DELTA_EXTENSION);
+        if (!file.exists()) {
+            return;
+        }
+        boolean complete = true;
+        boolean current = false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != DELTA_MAGIC || in.readInt() != DELTA_VERSION) {
+                throw new IOException("Not a delta file of version " + DELTA_VERSION + ": " + file);
+            }
+            current = in.readInt() == store.size();
+            while (current && in.available() > 0) {
+                String species = in.readUTF();
+                int number = in.readInt();
+                double area = in.readDouble();
+                double circularity = in.readDouble();
+                double aspectRatio = in.readDouble();
+                double roundness = in.readDouble();
+                double solidity = in.readDouble();
+                double[] efd = readArray(in, store.getEfdLength());
+                double[] hu = readArray(in, store.getHuLength());
+                delta.add(new LeafSample(species, number, area, circularity, aspectRatio, roundness, solidity,
+                        efd, hu));
+            }
+        } catch (EOFException e) {
+            complete = false;
+        } finally {
+            in.close();
+        }
+        if (!current || !complete) {
+            //new records must not follow a stale or truncated one
+            writeDelta(delta, false, store.size());
+        }
+    }
+
+    /**
+     * Appends rows to the delta file in one write, a new file gets the header first
+     */
+    private void appendDelta(List<LeafSample> rows) throws IOException {
+        writeDelta(rows, new File(filePath + DELTA_EXTENSION).exists(), store.size());
+    }
+
+    /**
+     * Writes rows to the delta file
+     *
+     * @param append   false to start a new file with a header
+     * @param baseRows rows of the store the delta file extends
+     */
+    private void writeDelta(List<LeafSample> rows, boolean append, int baseRows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (!append) {
+            out.writeInt(DELTA_MAGIC);
+            out.writeInt(DELTA_VERSION);
+            out.writeInt(baseRows);
+        }
+        for (LeafSample sample : rows) {
+            out.writeUTF(sample.species);
+            out.writeInt(sample.number);
+            out.writeDouble(sample.area);
+            out.writeDouble(sample.circularity);
+            out.writeDouble(sample.aspectRatio);
+            out.writeDouble(sample.roundness);
+            out.writeDouble(sample.solidity);
+            for (double value : sample.efd) {
+                out.writeDouble(value);
+            }
+            for (double value : sample.hu) {
+                out.writeDouble(value);
+            }
+        }
+        //one write of all rows, a failed write leaves at most a truncated record
+        OutputStream file = new FileOutputStream(filePath + DELTA_EXTENSION, append);
+        try {
+            bytes.writeTo(file);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static double[] readArray(DataInputStream in, int length) throws IOException {
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Writes the store with the rows of the delta file to a new file that replaces
+     * the database file and maps it, then empties the delta file.
+     * Classifiers built from the old mapping keep reading it
+     *
+     * @param current classifier with the weights for the new snapshot
+     * @return classifier over the new store
+     */
+    private KNNPlant compactStore(KNNPlant current) throws IOException {
+        final FeatureStore base = store;
+        //rows are read from the mapping one at a time while the new store is written
+        List<LeafSample> all = new AbstractList<LeafSample>() {
+            @Override
+            public LeafSample get(int index) {
+                return index < base.size() ? base.get(index) : delta.get(index - base.size());
+            }
+
+            @Override
+            public int size() {
+                return base.size() + delta.size();
+            }
+        };
+        File file = new File(filePath);
+        File temp = new File(filePath + ".tmp");
+        FeatureStore.write(temp.getPath(), all);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        //an empty delta file for the new store, the old records are stale from now on
+        writeDelta(Collections.<LeafSample>emptyList(), false, all.size());
+        store = FeatureStore.open(filePath);
+        delta.clear();
+        return new KNNPlant(store, current.getEfdFactor(), current.getHuFactor());
+    }
+
+    /**
+     * Column names of a csv database, null if the file does not exist or is empty
+     */
+    private static String[] readHeader(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return null;
+        }
+        CSVReader reader = new CSVReader(new FileReader(file), ',', '"', 0);
+        try {
+            return reader.readNext();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * LeafFeatures This class holds the features extracted from one leaf image:
+ * outline polygon, area, shape descriptors, EFDs and Hu moments
+ *
+ * @author Karina Becker
+ */
+
+import java.awt.Polygon;
+
+public class LeafFeatures {
+    public final Polygon contour;       // outline of the leaf, null if not kept
+    public final double area;
+    public final double circularity;
+    public final double aspectRatio;
+    public final double roundness;
+    public final double solidity;
+    public final double[] efd;          // normalised Elliptic Fourier Descriptors
+    public final double[] hu;           // Hu moments
+
+    public LeafFeatures(Polygon contour, double area, double circularity, double aspectRatio,
+                        double roundness, double solidity, double[] efd, double[] hu) {
+        this.contour = contour;
+        this.area = area;
+        this.circularity = circularity;
+        this.aspectRatio = aspectRatio;
+        this.roundness = roundness;
+        this.solidity = solidity;
+        this.efd = efd;
+        this.hu = hu;
+    }
+
+    /**
+     * Labels the features to add them to the reference database
+     *
+     * @param species species label
+     * @param number  number of the sample within its species
+     * @return labelled sample
+     */
+    public LeafSample toSample(String species, int number) {
+        return new LeafSample(species, number, area, circularity, aspectRatio, roundness, solidity, efd, hu);
+    }
+}
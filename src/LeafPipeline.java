@@ -0,0 +1,675 @@
+/**
+ * LeafPipeline This class runs the plant leaf recognition without any
+ * display classes: open image, Hu moments, preparation to a binary mask,
+ * largest particle, EFDs and classification
+ * <p>
+ * Images are decoded once (ImageIngest) into a grayscale raster for the
+ * preparation and, for a colour image, its unweighted channel average for the
+ * Hu moments, as the reference database has them. Images larger than the
+ * decode size are subsampled while decoding, but their features are only
+ * extracted when subsampling is allowed, see setAllowSubsampling().
+ * ImageJ commands are called on processor level instead of IJ.run, which
+ * needs the ImageJ menus and therefore a display. The preparation runs in
+ * the MaskEngine, optionally on a downscaled image (MaskPyramid). The steps
+ * and their parameters are the ones of the PlantRec_ plugin, which adds the
+ * optional visualization on top of this class. The stages report their
+ * latency and rejected images to PipelineMetrics when it is enabled.
+ * <p>
+ * Multi-leaf mode (extractAll, classifyAll) keeps every particle of the
+ * minimum size and aspect ratio instead of the largest one. The Hu moments
+ * of a leaf are taken from the gray pixels of its particle within its
+ * bounding box, the background does not contribute. Outline, measurements,
+ * Hu moments, EFDs and classification of the leaves run in parallel, one
+ * fork-join task per leaf, and read only the pixels of their leaf. The
+ * reference database holds Hu moments of whole images, which the gray Hu
+ * moments of a single particle do not match, so classifyAll() ranks these
+ * leaves by their EFDs alone.
+ *
+ * @author Karina Becker
+ */
+
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+import ij.process.EllipseFitter;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class LeafPipeline {
+    //the reference database was built from all outline vertices, resampled queries need a rebuilt one
+    public static final int DEFAULT_CONTOUR_POINTS = 0;
+    public static final int DEFAULT_EFD_COUNT = 30;
+    public static final double DEFAULT_MIN_AREA = 20000;
+    public static final double MAX_ASPECT_RATIO = 3.0;  // larger aspect ratio: leaf not detected properly
+    private static final int FOREGROUND = 255;          // mask value of the leaf
+
+    //the pyramids and labelers keep their working arrays, one per thread so a pipeline can be shared
+    private final ThreadLocal<MaskPyramid> pyramids = new ThreadLocal<MaskPyramid>();
+    private final ThreadLocal<ComponentLabeler> labelers = new ThreadLocal<ComponentLabeler>() {
+        @Override
+        protected ComponentLabeler initialValue() {
+            return new ComponentLabeler();
+        }
+    };
+
+    private int contourPoints = DEFAULT_CONTOUR_POINTS;
+    private int efdCount = DEFAULT_EFD_COUNT;
+    private double minArea = DEFAULT_MIN_AREA;
+    private int pyramidLevel = 0;
+    private boolean shapeMoments = false;
+    private ImageIngest ingest = new ImageIngest(0);
+    private boolean allowSubsampling = false;
+    private volatile FeatureCache cache;
+
+    private interface LeafPass {
+        void run(int leaf);
+    }
+
+    //splits the leaves of an image until one task handles one leaf
+    private static class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final LeafPass pass;
+        private final int from;
+        private final int to;
+
+        LeafTask(LeafPass pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                pass.run(from);
+            } else if (to > from) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(pass, from, middle), new LeafTask(pass, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Largest particle of the binary mask with its shape descriptors
+     */
+    public static class Particle {
+        public final Polygon polygon;
+        public final double area;
+        public final double circularity;
+        public final double aspectRatio;
+        public final double roundness;
+        public final double solidity;
+
+        public Particle(Polygon polygon, double area, double circularity, double aspectRatio,
+                        double roundness, double solidity) {
+            this.polygon = polygon;
+            this.area = area;
+            this.circularity = circularity;
+            this.aspectRatio = aspectRatio;
+            this.roundness = roundness;
+            this.solidity = solidity;
+        }
+    }
+
+    /**
+     * @param contourPoints number of arc length resampled contour points for EFD, 0 uses all vertices
+     */
+    public void setContourPoints(int contourPoints) {
+        this.contourPoints = contourPoints;
+    }
+
+    /**
+     * @param efdCount number of Fourier Descriptors, the first two are dropped by normalisation
+     */
+    public void setEfdCount(int efdCount) {
+        this.efdCount = efdCount;
+    }
+
+    /**
+     * @param minArea minimum particle size in pixels
+     */
+    public void setMinArea(double minArea) {
+        this.minArea = minArea;
+    }
+
+    /**
+     * @param pyramidLevel number of halvings the leaf is segmented at before the outline
+     *                     is refined at full resolution, 0 segments at full resolution only.
+     *                     Level 1 saves little, the coarse mask costs a quarter of the full one
+     */
+    public void setPyramidLevel(int pyramidLevel) {
+        new MaskPyramid(pyramidLevel); // checks the level
+        this.pyramidLevel = pyramidLevel;
+    }
+
+    /**
+     * @param shapeMoments true takes the Hu moments of the binary leaf shape from its outline
+     *                     (PolygonMoments, O(perimeter)), false those of the gray image pixels.
+     *                     A reference database must be built with the same setting
+     */
+    public void setShapeMoments(boolean shapeMoments) {
+        this.shapeMoments = shapeMoments;
+    }
+
+    /**
+     * @param decodeSize maximum length of the longer image side, larger images are
+     *                   subsampled while decoding, 0 decodes at full resolution.
+     *                   Without setAllowSubsampling(true) the features of a subsampled
+     *                   image are not extracted, so the decode size only bounds the decoding work
+     */
+    public void setDecodeSize(int decodeSize) {
+        this.ingest = new ImageIngest(decodeSize);
+    }
+
+    /**
+     * Features of a subsampled image do not match those of the full resolution image:
+     * the third order Hu moments are normalised with an integer exponent and scale with
+     * the subsampling factor, blur sigma, Bernsen and morphology radii stay in decoded
+     * pixels and only the minimum area is scaled. The bundled reference database is
+     * built at full resolution, so by default extraction rejects subsampled images.
+     *
+     * @param allowSubsampling true extracts the features of subsampled images, only for
+     *                         a reference database built with the same decode size
+     */
+    public void setAllowSubsampling(boolean allowSubsampling) {
+        this.allowSubsampling = allowSubsampling;
+    }
+
+    /**
+     * @param cache cache of already extracted features, null extracts every image
+     */
+    public void setCache(FeatureCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Description of all parameters that change the extracted features,
+     * part of the feature cache key
+     *
+     * @return parameters as text
+     */
+    public String getParameterKey() {
+        return "contourPoints=" + contourPoints + ",efdCount=" + efdCount + ",minArea=" + minArea
+                + ",pyramidLevel=" + pyramidLevel + ",decodeSize=" + ingest.getMaxSize() + ",sigma=" + MaskEngine.DEFAULT_SIGMA
+                + ",radius=" + MaskEngine.DEFAULT_RADIUS + ",shapeMoments=" + shapeMoments
+                + (allowSubsampling ? ",allowSubsampling=true" : "");
+    }
+
+    /**
+     * Opens an image without displaying it, decoded once to grayscale
+     *
+     * @param filePath path of the image
+     * @return opened image
+     * @throws IOException if the image cannot be opened
+     */
+    public ImagePlus open(String filePath) throws IOException {
+        long start = PipelineMetrics.start();
+        ImagePlus imp = ingest.open(filePath);
+        PipelineMetrics.stop(PipelineMetrics.OPEN, start);
+        return imp;
+    }
+
+    /**
+     * Decodes image file bytes once to grayscale
+     *
+     * @param data  image file bytes
+     * @param title title of the image
+     * @return decoded image, null if the format is not supported
+     * @throws IOException if the image cannot be read
+     */
+    public ImagePlus decode(byte[] data, String title) throws IOException {
+        long start = PipelineMetrics.start();
+        ImagePlus imp = ingest.decode(data, title);
+        PipelineMetrics.stop(PipelineMetrics.OPEN, start);
+        return imp;
+    }
+
+    /**
+     * Extracts all features of a leaf image, the image is turned into the binary mask
+     *
+     * @param imp input image
+     * @return features of the largest leaf, null if no leaf was found
+     */
+    public LeafFeatures extract(ImagePlus imp) {
+        checkSubsampling(imp);
+        double[] huMoments = shapeMoments ? null : getHuMoments(imp);  // Get array with Hu moments
+        preparation(imp);                          // Turn image to binary
+        Particle particle = findLargestArea(imp);  // Find polygon for largest area
+        if (particle == null) {
+            return null;
+        }
+        if (shapeMoments) {
+            huMoments = getHuMoments(particle.polygon);
+        }
+        double[] efd = getEFD(particle.polygon);   // Get array with EFDs
+        return new LeafFeatures(particle.polygon, particle.area, particle.circularity, particle.aspectRatio,
+                particle.roundness, particle.solidity, efd, huMoments);
+    }
+
+    /**
+     * Extracts the features of every leaf of an image, the image is turned into the binary mask
+     *
+     * @param imp input image
+     * @return features of every leaf of the minimum size and aspect ratio, in the raster order
+     * of their first pixel, empty if no leaf was found
+     */
+    public List<LeafFeatures> extractAll(ImagePlus imp) {
+        checkSubsampling(imp);
+        ImageProcessor gray = ImageIngest.getMomentSource(imp);  // preparation replaces the processor of the image
+        preparation(imp);
+        long start = PipelineMetrics.start();
+        ImageProcessor ip = imp.getProcessor();
+        if (!(ip instanceof ByteProcessor)) {
+            ip = ip.convertToByte(false);
+        }
+        final ImageProcessor mask = ip;
+        final List<ComponentLabeler.Component> components = labelers.get().findAll((byte[]) mask.getPixels(),
+                mask.getWidth(), mask.getHeight(), (byte) FOREGROUND, minArea(imp));
+        PipelineMetrics.stop(PipelineMetrics.LARGEST_AREA, start);
+        if (components.isEmpty()) {
+            System.err.println("Error. Empty contour array");
+            PipelineMetrics.countEmptyContour();
+            return new ArrayList<LeafFeatures>();
+        }
+
+        final ImageProcessor source = gray;
+        final LeafFeatures[] leaves = new LeafFeatures[components.size()];
+        run(new LeafPass() {
+            @Override
+            public void run(int leaf) {
+                leaves[leaf] = extract(source, mask, components.get(leaf));
+            }
+        }, leaves.length);
+        List<LeafFeatures> features = new ArrayList<LeafFeatures>(leaves.length);
+        for (LeafFeatures leaf : leaves) {
+            if (leaf != null) {
+                features.add(leaf);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Features of one particle, null if its aspect ratio is too large for a leaf
+     *
+     * @param gray      gray image the Hu moments are taken from
+     * @param mask      binary mask of the whole image
+     * @param component particle of the mask
+     */
+    private LeafFeatures extract(ImageProcessor gray, ImageProcessor mask, ComponentLabeler.Component component) {
+        //the Wand only reads the pixels along the outline
+        Wand wand = new Wand(mask);
+        wand.autoOutline(component.startX, component.startY, FOREGROUND, FOREGROUND, Wand.LEGACY_MODE);
+        Polygon polygon = new Polygon(wand.xpoints, wand.ypoints, wand.npoints);
+        Particle particle = measure(polygon, component.area, component.mask);
+        if (particle.aspectRatio > MAX_ASPECT_RATIO) {
+            PipelineMetrics.countAspectRatio();
+            return null;
+        }
+
+        double[] huMoments;
+        if (shapeMoments) {
+            huMoments = getHuMoments(polygon);
+        } else {
+            long start = PipelineMetrics.start();
+            huMoments = new ImageMoments(gray, component.bounds, component.mask).getAllMoments();
+            PipelineMetrics.stop(PipelineMetrics.HU_MOMENTS, start);
+        }
+        double[] efd = getEFD(polygon);
+        return new LeafFeatures(polygon, particle.area, particle.circularity, particle.aspectRatio,
+                particle.roundness, particle.solidity, efd, huMoments);
+    }
+
+    /**
+     * Runs the full pipeline in multi-leaf mode for one image file
+     *
+     * @param filePath   path of the image
+     * @param classifier loaded classifier
+     * @param k          number of closest matches to consider
+     * @return classifications of every leaf in the order of extractAll(), empty if no leaf was found
+     * @throws IOException if the image cannot be opened
+     */
+    public List<KNNPlant.Classification> classifyAll(String filePath, KNNPlant classifier, int k)
+            throws IOException {
+        return classifyAll(extractAll(open(filePath)), classifier, k);
+    }
+
+    /**
+     * Classifies leaves of extractAll() in parallel. Hu moments of the gray pixels of
+     * one particle do not match the whole image moments of the reference database, so
+     * these leaves are ranked by their EFDs alone, Hu moments of the leaf shape
+     * (setShapeMoments) are compared as usual
+     *
+     * @param features   features of the leaves
+     * @param classifier loaded classifier
+     * @param k          number of closest matches to consider
+     * @return classifications in the order of the leaves
+     */
+    public List<KNNPlant.Classification> classifyAll(final List<LeafFeatures> features, KNNPlant classifier,
+                                                     final int k) {
+        final KNNPlant leafClassifier = shapeMoments ? classifier : classifier.withFactors(classifier.getEfdFactor(), 0);
+        final KNNPlant.Classification[] classifications = new KNNPlant.Classification[features.size()];
+        run(new LeafPass() {
+            @Override
+            public void run(int leaf) {
+                classifications[leaf] = leafClassifier.classify(features.get(leaf).efd, features.get(leaf).hu, k);
+            }
+        }, classifications.length);
+        return Arrays.asList(classifications);
+    }
+
+    private static void run(LeafPass pass, int leaves) {
+        ForkJoinPool.commonPool().invoke(new LeafTask(pass, 0, leaves));
+    }
+
+    /**
+     * Extracts all features of an image file, with a cache an image
+     * with the same bytes and parameters is extracted only once
+     *
+     * @param filePath path of the image
+     * @return features of the largest leaf, without contour if cached, null if no leaf was found
+     * @throws IOException if the image cannot be opened
+     */
+    public LeafFeatures extract(String filePath) throws IOException {
+        FeatureCache cache = this.cache;
+        if (cache == null) {
+            return extract(open(filePath));
+        }
+        String key = FeatureCache.key(Files.readAllBytes(Paths.get(filePath)), getParameterKey());
+        LeafFeatures features = cache.get(key);
+        if (features == null) {
+            features = extract(open(filePath));
+            putCache(cache, key, features);
+        }
+        return features;
+    }
+
+    /**
+     * Extracts all features of image file bytes, with a cache an image
+     * with the same bytes and parameters is extracted only once
+     *
+     * @param data  image file bytes
+     * @param title title of the image
+     * @return features of the largest leaf, without contour if cached, null if no leaf was found
+     * @throws IOException              if the image cannot be read
+     * @throws IllegalArgumentException if no decoder reads the format
+     */
+    public LeafFeatures extract(byte[] data, String title) throws IOException {
+        FeatureCache cache = this.cache;
+        String key = null;
+        if (cache != null) {
+            key = FeatureCache.key(data, getParameterKey());
+            LeafFeatures features = cache.get(key);
+            if (features != null) {
+                return features;
+            }
+        }
+        ImagePlus imp = decode(data, title);
+        if (imp == null) {
+            throw new IllegalArgumentException("Unsupported image format");
+        }
+        LeafFeatures features = extract(imp);
+        if (cache != null) {
+            putCache(cache, key, features);
+        }
+        return features;
+    }
+
+    /**
+     * Adds features to the cache, a cache that cannot be written does not fail the extraction
+     */
+    private static void putCache(FeatureCache cache, String key, LeafFeatures features) {
+        if (features == null) {
+            return;
+        }
+        try {
+            cache.put(key, features);
+        } catch (IOException e) {
+            System.err.println("Cannot write feature cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the full pipeline for one image file
+     *
+     * @param filePath   path of the image
+     * @param classifier loaded classifier
+     * @param k          number of closest matches to consider
+     * @return classification, null if no leaf was found
+     * @throws IOException if the image cannot be opened
+     */
+    public KNNPlant.Classification classify(String filePath, KNNPlant classifier, int k) throws IOException {
+        LeafFeatures features = extract(filePath);
+        if (features == null) {
+            return null;
+        }
+        return classifier.classify(features.efd, features.hu, k);
+    }
+
+    /**
+     * Hu moments of the whole input image
+     *
+     * @param imp input image
+     * @return huMoments double array with the Hu moments
+     */
+    public double[] getHuMoments(ImagePlus imp) {
+        long start = PipelineMetrics.start();
+        double[] huMoments = new ImageMoments(ImageIngest.getMomentSource(imp)).getAllMoments();
+        PipelineMetrics.stop(PipelineMetrics.HU_MOMENTS, start);
+        return huMoments;
+    }
+
+    /**
+     * Hu moments of the binary shape enclosed by a traced outline
+     *
+     * @param polygon traced outline
+     * @return huMoments double array with the Hu moments
+     */
+    public double[] getHuMoments(Polygon polygon) {
+        long start = PipelineMetrics.start();
+        double[] huMoments = new PolygonMoments(polygon).getAllMoments();
+        PipelineMetrics.stop(PipelineMetrics.HU_MOMENTS, start);
+        return huMoments;
+    }
+
+    /**
+     * Preparation of input image,
+     * turn to binary image with clear outline, leaf pixels are 255
+     *
+     * @param imp input image, replaced by the mask
+     */
+    public void preparation(ImagePlus imp) {
+        long start = PipelineMetrics.start();
+        PipelineMetrics.countImage();
+        MaskPyramid pyramid = pyramids.get();
+        if (pyramid == null || pyramid.getLevel() != pyramidLevel) {
+            pyramid = new MaskPyramid(pyramidLevel);
+            pyramids.set(pyramid);
+        }
+        imp.setProcessor(pyramid.prepare(imp.getProcessor(), minArea(imp)));
+        PipelineMetrics.stop(PipelineMetrics.PREPARATION, start);
+    }
+
+    /**
+     * Find largest contour to create polygon from it
+     * labels the particles of the mask, traces the outline of the largest one
+     * from its start point like the ParticleAnalyzer does and measures only this particle
+     *
+     * @param imp binary mask
+     * @return largest particle with shape descriptors, null if there is none
+     */
+    public Particle findLargestArea(ImagePlus imp) {
+        long start = PipelineMetrics.start();
+        ImageProcessor ip = imp.getProcessor();
+        if (!(ip instanceof ByteProcessor)) {
+            ip = ip.convertToByte(false);
+        }
+        ComponentLabeler labeler = labelers.get();
+        int area = labeler.findLargest((byte[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), (byte) FOREGROUND);
+        if (area == 0 || area < minArea(imp)) {
+            System.err.println("Error. Empty contour array");
+            PipelineMetrics.countEmptyContour();
+            PipelineMetrics.stop(PipelineMetrics.LARGEST_AREA, start);
+            return null;
+        }
+
+        //Get polygon of largest shape
+        Wand wand = new Wand(ip);
+        wand.autoOutline(labeler.getStartX(), labeler.getStartY(), FOREGROUND, FOREGROUND, Wand.LEGACY_MODE);
+        Polygon polygon = new Polygon(wand.xpoints, wand.ypoints, wand.npoints);
+        Particle particle = measure(polygon, area, labeler.getMask());
+
+        //Test if image quality sufficient/ correct shape detected
+        if (particle.aspectRatio > MAX_ASPECT_RATIO) {
+            System.err.println("Please try again with another image. Leaf could not be detected.");
+            PipelineMetrics.countAspectRatio();
+        }
+        PipelineMetrics.stop(PipelineMetrics.LARGEST_AREA, start);
+        return particle;
+    }
+
+    /**
+     * Rejects a subsampled image unless subsampling is allowed
+     *
+     * @throws IllegalArgumentException if the image was subsampled
+     */
+    private void checkSubsampling(ImagePlus imp) {
+        int factor = ImageIngest.getSubsampling(imp);
+        if (factor > 1 && !allowSubsampling) {
+            throw new IllegalArgumentException("Image was subsampled by " + factor
+                    + " to the decode size " + ingest.getMaxSize()
+                    + ", its features do not match a full resolution database");
+        }
+    }
+
+    /**
+     * Minimum particle size in pixels of an image, scaled down for subsampled images
+     */
+    private double minArea(ImagePlus imp) {
+        int factor = ImageIngest.getSubsampling(imp);
+        return minArea / (factor * factor);
+    }
+
+    /**
+     * Shape descriptors of a particle as the ImageJ measurements define them:
+     * circularity from the traced perimeter, aspect ratio and roundness from
+     * the fitted ellipse and solidity from the convex hull
+     *
+     * @param polygon traced outline
+     * @param area    number of particle pixels
+     * @param mask    particle mask within its bounding box
+     * @return particle with shape descriptors
+     */
+    static Particle measure(Polygon polygon, int area, ByteProcessor mask) {
+        //the roi keeps the coordinate arrays and makes them relative to its bounds, so it gets copies
+        PolygonRoi roi = new PolygonRoi(Arrays.copyOf(polygon.xpoints, polygon.npoints),
+                Arrays.copyOf(polygon.ypoints, polygon.npoints), polygon.npoints, Roi.TRACED_ROI);
+        double perimeter = roi.getLength();
+        double circularity = perimeter == 0.0 ? 0.0 : 4.0 * Math.PI * (area / (perimeter * perimeter));
+        if (circularity > 1.0) {
+            circularity = 1.0;
+        }
+
+        //the fitter reads the particle from the mask of the processor
+        ByteProcessor bounds = new ByteProcessor(mask.getWidth(), mask.getHeight());
+        bounds.setMask(mask);
+        EllipseFitter ellipse = new EllipseFitter();
+        ellipse.fit(bounds, null);
+
+        Polygon hull = roi.getConvexHull();
+        return new Particle(polygon, area, circularity, ellipse.major / ellipse.minor,
+                4.0 * area / (Math.PI * ellipse.major * ellipse.major), area / polygonArea(hull));
+    }
+
+    /**
+     * Area enclosed by a polygon (shoelace formula)
+     */
+    private static double polygonArea(Polygon p) {
+        int twiceArea = 0;
+        for (int i = 0, previous = p.npoints - 1; i < p.npoints; previous = i++) {
+            twiceArea += (p.xpoints[i] + p.xpoints[previous]) * (p.ypoints[i] - p.ypoints[previous]);
+        }
+        return Math.abs(twiceArea / 2.0);
+    }
+
+    /**
+     * get EFDs
+     *
+     * @param polygon to get outline contour from
+     * @return efd double array of EFDs
+     */
+    public double[] getEFD(Polygon polygon) {
+        long start = PipelineMetrics.start();
+        double[] efd = createEFD(polygon).getEfdNormalised();
+        PipelineMetrics.stop(PipelineMetrics.EFD, start);
+        return efd;
+    }
+
+    /**
+     * Elliptic Fourier transform of an outline,
+     * resampled to the configured number of points
+     *
+     * @param polygon to get outline contour from
+     * @return EFD of the outline
+     */
+    public EFD createEFD(Polygon polygon) {
+        PipelineMetrics.recordContourPoints(polygon.npoints);
+        double[] xDouble;
+        double[] yDouble;
+        if (contourPoints > 0) {
+            //Resample outline to a fixed number of points evenly spaced by arc length
+            double[][] xy = ContourResampler.resample(polygon, contourPoints);
+            xDouble = xy[0];
+            yDouble = xy[1];
+        } else {
+            //Get outline points from polygon and change to double
+            xDouble = new double[polygon.npoints];
+            yDouble = new double[polygon.npoints];
+            for (int i = 0; i < polygon.npoints; ++i) {
+                xDouble[i] = polygon.xpoints[i];
+                yDouble[i] = polygon.ypoints[i];
+            }
+        }
+        return new EFD(xDouble, yDouble, efdCount);
+    }
+
+    /**
+     * Headless command line entry
+     * arguments: image path, optional k, database path and "all" for the multi-leaf mode
+     */
+    public static void main(String[] args) throws IOException {
+        PipelineMetrics.configure();
+        String filePath = args.length > 0 ? args[0] : "file/leaf.JPG";
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String database = args.length > 2 ? args[2] : KNNPlant.DEFAULT_DATABASE;
+        boolean all = args.length > 3 && "all".equals(args[3]);
+        LeafPipeline pipeline = new LeafPipeline();
+        if (all) {
+            List<LeafFeatures> leaves = pipeline.extractAll(pipeline.open(filePath));
+            List<KNNPlant.Classification> results = pipeline.classifyAll(leaves, new KNNPlant(database), k);
+            for (int i = 0; i < leaves.size(); i++) {
+                System.out.println("\nLeaf " + (i + 1) + " at " + leaves.get(i).contour.getBounds());
+                results.get(i).print();
+            }
+        } else {
+            KNNPlant.Classification result = pipeline.classify(filePath, new KNNPlant(database), k);
+            if (result != null) {
+                result.print();
+            }
+        }
+        if (PipelineMetrics.get().isEnabled()) {
+            System.out.print(PipelineMetrics.get().dump());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * LeafSample This class holds the features of one labelled leaf of the
+ * reference database: species, sample number, area, shape descriptors,
+ * EFDs and Hu moments
+ *
+ * @author Karina Becker
+ */
+
+public class LeafSample {
+    public final String species;        // species label
+    public final int number;            // number of the sample within its species
+    public final double area;
+    public final double circularity;
+    public final double aspectRatio;    // NaN if the database has no aspect ratio column
+    public final double roundness;
+    public final double solidity;
+    public final double[] efd;          // normalised Elliptic Fourier Descriptors
+    public final double[] hu;           // Hu moments
+
+    public LeafSample(String species, int number, double area, double circularity, double aspectRatio,
+                      double roundness, double solidity, double[] efd, double[] hu) {
+        this.species = species;
+        this.number = number;
+        this.area = area;
+        this.circularity = circularity;
+        this.aspectRatio = aspectRatio;
+        this.roundness = roundness;
+        this.solidity = solidity;
+        this.efd = efd;
+        this.hu = hu;
+    }
+}
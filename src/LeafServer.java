@@ -0,0 +1,531 @@
+/**
+ * LeafServer This class runs the plant leaf recognition as a local HTTP service
+ * with one preloaded reference database and a bounded pool of worker threads
+ * <p>
+ * Endpoints:
+ * POST /classify/image?k=5     body: image file bytes (JPG, PNG, ...)
+ * POST /classify/features?k=5  body: {"efd":[...],"hu":[...]}
+ * POST /classify/leaves?k=5    body: image file bytes, classifies every leaf of the image
+ * POST /samples?species=10     body: image file bytes, adds the leaf to the database
+ * GET  /health
+ * The answer holds the k closest matches, the majority class and the
+ * latency of every stage in milliseconds as JSON, for /classify/image the
+ * stages LeafPipeline reports to PipelineMetrics. With a feature cache an
+ * upload that was classified before skips the image processing. Started with
+ * -Dleaf.metrics=true the stages are also collected by PipelineMetrics.
+ * Every request classifies with the database snapshot current at its start,
+ * added leaves are visible to the requests that start after them.
+ * /classify/leaves ranks every leaf by its EFDs alone, since the Hu moments
+ * of the pixels of one particle do not match the whole image Hu moments of
+ * the reference database, so its distances are not comparable to the ones
+ * of /classify/image.
+ * There is no authentication and POST /samples writes to the database, so
+ * the service binds the loopback address unless another address is given.
+ *
+ * @author Karina Becker
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import ij.ImagePlus;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class LeafServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_K = 5;
+    private static final int DEFAULT_QUEUE = 64;              // waiting requests before the accepting thread runs them itself
+    private static final int MAX_BODY = 32 * 1024 * 1024;     // largest accepted request body
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final LeafDatabase database;
+    private final LeafPipeline pipeline;
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Constructor LeafServer binds the port on the loopback address, the server runs after start(),
+     * added leaves are kept in memory only
+     *
+     * @param port       local port, 0 picks a free one
+     * @param classifier loaded classifier shared by all requests
+     * @param threads    number of worker threads
+     * @throws IOException if the port cannot be bound
+     */
+    public LeafServer(int port, KNNPlant classifier, int threads) throws IOException {
+        this(port, new LeafDatabase(classifier), threads);
+    }
+
+    /**
+     * Constructor LeafServer binds the port on the loopback address, the server runs after start()
+     *
+     * @param port     local port, 0 picks a free one
+     * @param database loaded database shared by all requests, added leaves are written to it
+     * @param threads  number of worker threads
+     * @throws IOException if the port cannot be bound
+     */
+    public LeafServer(int port, LeafDatabase database, int threads) throws IOException {
+        this(port, InetAddress.getLoopbackAddress(), database, threads);
+    }
+
+    /**
+     * Constructor LeafServer binds the port, the server runs after start()
+     *
+     * @param port     local port, 0 picks a free one
+     * @param address  local address, null for all addresses; the endpoints have no authentication
+     * @param database loaded database shared by all requests, added leaves are written to it
+     * @param threads  number of worker threads
+     * @throws IOException if the port cannot be bound
+     */
+    public LeafServer(int port, InetAddress address, LeafDatabase database, int threads) throws IOException {
+        this.database = database;
+        this.pipeline = new LeafPipeline();
+        //bounded queue, when it is full the accepting thread runs the request which slows down new connections
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE), new ThreadPoolExecutor.CallerRunsPolicy());
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.setExecutor(workers);
+        server.createContext("/classify/image", new ImageHandler());
+        server.createContext("/classify/features", new FeatureHandler());
+        server.createContext("/classify/leaves", new LeavesHandler());
+        server.createContext("/samples", new SampleHandler());
+        server.createContext("/health", new HealthHandler());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits for the running ones
+     *
+     * @param delaySeconds maximum time to wait for running requests
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        workers.shutdown();
+    }
+
+    /**
+     * @param cache cache of already extracted features, uploads with the same bytes
+     *              skip straight to the classifier, null extracts every upload
+     */
+    public void setCache(FeatureCache cache) {
+        pipeline.setCache(cache);
+    }
+
+    /**
+     * @param decodeSize maximum length of the longer side of a decoded upload,
+     *                   0 decodes at full resolution, set before start().
+     *                   Larger uploads are rejected, their subsampled features
+     *                   would not match the full resolution database
+     */
+    public void setDecodeSize(int decodeSize) {
+        pipeline.setDecodeSize(decodeSize);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Classifies an uploaded image
+     */
+    private class ImageHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!checkMethod(exchange, "POST")) {
+                return;
+            }
+            PipelineMetrics.startTrace();
+            try {
+                long start = System.nanoTime();
+                int k = getK(exchange);
+                byte[] body = readBody(exchange);
+                KNNPlant classifier = database.getClassifier();
+
+                //the stages of the pipeline report their latencies to the trace of this thread
+                LeafFeatures features = pipeline.extract(body, "upload");
+                if (features == null) {
+                    sendError(exchange, 422, "No leaf found");
+                    return;
+                }
+                KNNPlant.Classification result = classifier.classify(features.efd, features.hu, k);
+                Map<String, Double> timings = new LinkedHashMap<String, Double>(PipelineMetrics.stopTrace());
+                lap(timings, "total", start);
+                sendJson(exchange, 200, toJson(result, timings));
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Classification failed");
+            } finally {
+                PipelineMetrics.stopTrace();
+            }
+        }
+    }
+
+    /**
+     * Classifies precomputed EFDs and Hu moments
+     */
+    private class FeatureHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!checkMethod(exchange, "POST")) {
+                return;
+            }
+            try {
+                Map<String, Double> timings = new LinkedHashMap<String, Double>();
+                long start = System.nanoTime();
+                int k = getK(exchange);
+                String body = new String(readBody(exchange), UTF8);
+                KNNPlant classifier = database.getClassifier();
+
+                long t = System.nanoTime();
+                double[] efd = parseArray(body, "efd");
+                double[] huMoments = parseArray(body, "hu");
+                t = lap(timings, "decode", t);
+                KNNPlant.Classification result = classifier.classify(efd, huMoments, k);
+                lap(timings, "classify", t);
+                lap(timings, "total", start);
+                sendJson(exchange, 200, toJson(result, timings));
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Classification failed");
+            }
+        }
+    }
+
+    /**
+     * Classifies every leaf of an uploaded image
+     */
+    private class LeavesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!checkMethod(exchange, "POST")) {
+                return;
+            }
+            try {
+                Map<String, Double> timings = new LinkedHashMap<String, Double>();
+                long start = System.nanoTime();
+                int k = getK(exchange);
+                byte[] body = readBody(exchange);
+                KNNPlant classifier = database.getClassifier();
+
+                long t = System.nanoTime();
+                ImagePlus imp = pipeline.decode(body, "upload");
+                if (imp == null) {
+                    sendError(exchange, 400, "Unsupported image format");
+                    return;
+                }
+                t = lap(timings, "decode", t);
+                List<LeafFeatures> leaves = pipeline.extractAll(imp);
+                t = lap(timings, "extraction", t);
+                List<KNNPlant.Classification> results = pipeline.classifyAll(leaves, classifier, k);
+                lap(timings, "classify", t);
+                lap(timings, "total", start);
+
+                StringBuilder json = new StringBuilder("{\"leaves\":[");
+                for (int i = 0; i < leaves.size(); i++) {
+                    Rectangle bounds = leaves.get(i).contour.getBounds();
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    json.append("{\"bounds\":[").append(bounds.x).append(',').append(bounds.y).append(',')
+                            .append(bounds.width).append(',').append(bounds.height).append("],");
+                    appendClassification(json, results.get(i));
+                    json.append('}');
+                }
+                json.append("],");
+                appendTimings(json, timings);
+                sendJson(exchange, 200, json.append('}').toString());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Classification failed");
+            }
+        }
+    }
+
+    private class HealthHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!checkMethod(exchange, "GET")) {
+                return;
+            }
+            sendJson(exchange, 200, "{\"status\":\"ok\",\"databaseSize\":" + database.size() + "}");
+        }
+    }
+
+    /**
+     * Adds an uploaded leaf image with its species to the database
+     */
+    private class SampleHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!checkMethod(exchange, "POST")) {
+                return;
+            }
+            try {
+                String species = getParameter(exchange, "species");
+                //the label becomes a csv cell of the database
+                if (species == null || !species.trim().matches("[^,\"\r\n]+")) {
+                    throw new IllegalArgumentException("Missing or invalid species");
+                }
+                species = species.trim();
+                ImagePlus imp = pipeline.decode(readBody(exchange), "sample");
+                if (imp == null) {
+                    sendError(exchange, 400, "Unsupported image format");
+                    return;
+                }
+                LeafFeatures features = pipeline.extract(imp);
+                if (features == null) {
+                    sendError(exchange, 422, "No leaf found");
+                    return;
+                }
+                LeafSample sample = database.add(features, species);
+                sendJson(exchange, 200, "{\"species\":" + quote(sample.species)
+                        + ",\"number\":" + sample.number
+                        + ",\"databaseSize\":" + database.size() + "}");
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Adding the leaf failed");
+            }
+        }
+    }
+
+    /**
+     * Adds the milliseconds since the last stage
+     *
+     * @return current time for the next stage
+     */
+    private static long lap(Map<String, Double> timings, String stage, long since) {
+        long now = System.nanoTime();
+        timings.put(stage, (now - since) / 1e6);
+        return now;
+    }
+
+    private static boolean checkMethod(HttpExchange exchange, String method) throws IOException {
+        if (method.equals(exchange.getRequestMethod())) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", method);
+        sendError(exchange, 405, "Use " + method);
+        return false;
+    }
+
+    /**
+     * Reads the number of neighbours from the query string, k=5 by default
+     */
+    private static int getK(HttpExchange exchange) {
+        String value = getParameter(exchange, "k");
+        if (value == null) {
+            return DEFAULT_K;
+        }
+        int k;
+        try {
+            k = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid k: " + value);
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        return k;
+    }
+
+    /**
+     * @return URL-decoded value of a query string parameter, null if it is missing
+     * @throws IllegalArgumentException if the query string has an invalid escape
+     */
+    private static String getParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                String key = equals < 0 ? parameter : parameter.substring(0, equals);
+                if (URLDecoder.decode(key, StandardCharsets.UTF_8).equals(name)) {
+                    return equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (out.size() + n > MAX_BODY) {
+                    throw new IllegalArgumentException("Request body larger than " + MAX_BODY + " bytes");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a number array of a flat JSON object, e.g. "efd":[0.1,0.2]
+     *
+     * @param json JSON object
+     * @param key  name of the array
+     * @return values of the array
+     */
+    static double[] parseArray(String json, String key) {
+        int keyIndex = json.indexOf("\"" + key + "\"");
+        int open = keyIndex < 0 ? -1 : json.indexOf('[', keyIndex);
+        int close = open < 0 ? -1 : json.indexOf(']', open);
+        if (close < 0) {
+            throw new IllegalArgumentException("Missing array \"" + key + "\"");
+        }
+        String content = json.substring(open + 1, close).trim();
+        List<Double> values = new ArrayList<Double>();
+        if (!content.isEmpty()) {
+            for (String value : content.split(",")) {
+                try {
+                    values.add(Double.parseDouble(value.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number in \"" + key + "\": " + value.trim());
+                }
+            }
+        }
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    static String toJson(KNNPlant.Classification result, Map<String, Double> timings) {
+        StringBuilder json = new StringBuilder("{");
+        appendClassification(json, result);
+        json.append(',');
+        appendTimings(json, timings);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Appends the majority class and the matches as members of a JSON object
+     */
+    private static void appendClassification(StringBuilder json, KNNPlant.Classification result) {
+        json.append("\"majorityClass\":").append(quote(result.majorityClass)).append(",\"matches\":[");
+        for (int i = 0; i < result.species.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"species\":").append(quote(result.species[i]))
+                    .append(",\"distance\":").append(number(result.distances[i])).append('}');
+        }
+        json.append(']');
+    }
+
+    /**
+     * JSON string literal with quotes, backslashes and control characters escaped, null for null
+     */
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * JSON number, null for NaN and infinite values which JSON cannot represent
+     */
+    static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value);
+    }
+
+    private static void appendTimings(StringBuilder json, Map<String, Double> timings) {
+        json.append("\"timingsMs\":{");
+        boolean first = true;
+        for (Map.Entry<String, Double> timing : timings.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append(quote(timing.getKey())).append(':').append(number(timing.getValue()));
+        }
+        json.append('}');
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        sendJson(exchange, status, "{\"error\":" + quote(message) + "}");
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Starts the service
+     * optional arguments: port, database path, number of worker threads, feature cache path
+     * ("-" for none), maximum decode size and local address to bind (default loopback,
+     * 0.0.0.0 for all interfaces)
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        PipelineMetrics.configure();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String database = args.length > 1 ? args[1] : KNNPlant.DEFAULT_DATABASE;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        InetAddress address = args.length > 5 ? InetAddress.getByName(args[5]) : InetAddress.getLoopbackAddress();
+        LeafServer leafServer = new LeafServer(port, address, new LeafDatabase(database), threads);
+        if (args.length > 3 && !"-".equals(args[3])) {
+            leafServer.setCache(new FeatureCache(args[3], FeatureCache.DEFAULT_MAX_ENTRIES));
+        }
+        if (args.length > 4) {
+            leafServer.setDecodeSize(Integer.parseInt(args[4]));
+        }
+        leafServer.start();
+        System.out.println("Leaf recognition service listening on " + address.getHostAddress()
+                + " port " + leafServer.getPort());
+    }
+}
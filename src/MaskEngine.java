@@ -0,0 +1,652 @@
+/**
+ * MaskEngine This class turns a leaf image into the binary leaf mask in a few
+ * fused passes over plain arrays, with the same result as the ImageJ sequence
+ * grayscale, Gaussian Blur (sigma 1.5), Bernsen local threshold (radius 7),
+ * Convert to Mask, Dilate, Close- and Fill Holes
+ * <p>
+ * Passes: grayscale and horizontal blur, vertical blur, Bernsen with sliding
+ * row minima/maxima and the horizontal part of the dilation, vertical
+ * dilation with horizontal erosion, vertical erosion, hole filling.
+ * All passes but the last one run on bands of rows in the common fork join pool.
+ * The passes can be limited to spans of pixels per row (see refine()), each
+ * pass then only computes the pixels the following passes read.
+ * The working arrays are kept for the next image of the same size,
+ * so an engine must not be used by two threads at the same time.
+ *
+ * @author Karina Becker
+ */
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class MaskEngine {
+    public static final double DEFAULT_SIGMA = 1.5;
+    public static final int DEFAULT_RADIUS = 7;
+    private static final double BLUR_ACCURACY = 0.002;  // accuracy "Gaussian Blur..." uses for 8-bit images
+    private static final int CONTRAST_THRESHOLD = 15;   // Bernsen: below this local contrast the mid gray decides
+    public static final int DEFAULT_DILATE_RADIUS = 2;  // Dilate and the dilation of Close-, 3x3 each
+    public static final int DEFAULT_ERODE_RADIUS = 1;   // erosion of Close-
+    private static final int BAND_ROWS = 32;            // rows per parallel task
+    private static final byte LEAF = (byte) 255;
+    private static final byte BACKGROUND = 0;
+
+    private final double sigma;
+    private final int radius;
+    private final int dilateRadius;  // square dilation after the threshold
+    private final int erodeRadius;   // square erosion after the dilation
+    private final int[] lineWidths;  // half width of the circular Bernsen kernel per row offset
+
+    private int width;
+    private int height;
+    private float[][] kernelX;
+    private float[][] kernelY;
+    private float[] blurX;   // horizontally blurred rows
+    private byte[] blurred;  // blurred gray image
+    private byte[] dilated;  // threshold with horizontal dilation
+    private byte[] closed;   // after dilation and horizontal erosion
+    private int[] stack;     // flood fill stack
+
+    private interface RowPass {
+        void run(int from, int to);
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowPass pass;
+        private final int from;
+        private final int to;
+
+        BandTask(RowPass pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BAND_ROWS) {
+                pass.run(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BandTask(pass, from, middle), new BandTask(pass, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Constructor MaskEngine with the parameters of the PlantRec_ preparation
+     */
+    public MaskEngine() {
+        this(DEFAULT_SIGMA, DEFAULT_RADIUS, DEFAULT_DILATE_RADIUS, DEFAULT_ERODE_RADIUS);
+    }
+
+    /**
+     * @param sigma        standard deviation of the Gaussian blur
+     * @param radius       radius of the circular Bernsen window
+     * @param dilateRadius radius of the square dilation after the threshold
+     * @param erodeRadius  radius of the square erosion after the dilation
+     */
+    public MaskEngine(double sigma, int radius, int dilateRadius, int erodeRadius) {
+        if (radius < 1) {
+            throw new IllegalArgumentException("Radius must be at least 1");
+        }
+        this.sigma = sigma;
+        this.radius = radius;
+        this.dilateRadius = dilateRadius;
+        this.erodeRadius = erodeRadius;
+        //same circular kernel as RankFilters, the half widths are 1 to radius
+        lineWidths = new int[2 * radius + 1];
+        double r2 = radius * radius + 1;
+        for (int dy = -radius; dy <= radius; dy++) {
+            lineWidths[dy + radius] = (int) Math.sqrt(r2 - dy * dy + 1e-10);
+        }
+    }
+
+    /**
+     * Builds the binary leaf mask
+     *
+     * @param ip input image, RGB or 8-bit, left unchanged
+     * @return mask with leaf pixels 255 and background 0
+     */
+    public ByteProcessor prepare(ImageProcessor ip) {
+        int w = ip.getWidth();
+        int h = ip.getHeight();
+        int[][] all = new int[h][];
+        for (int y = 0; y < h; y++) {
+            all[y] = new int[]{0, w};
+        }
+        return refine(ip, new byte[w * h], all);
+    }
+
+    /**
+     * Computes the mask only on spans of pixels and keeps the given values elsewhere,
+     * then fills the holes of the whole mask.
+     * Inside the spans the values are the same as the ones of prepare() before filling.
+     *
+     * @param ip   input image, RGB or 8-bit, left unchanged
+     * @param mask initial mask with leaf pixels 255, overwritten inside the spans
+     * @param band per row sorted pairs of start (inclusive) and end (exclusive) x
+     * @return mask with leaf pixels 255 and background 0
+     */
+    public ByteProcessor refine(ImageProcessor ip, byte[] mask, int[][] band) {
+        compute(ip, mask, band);
+        fillHoles(mask);
+        return new ByteProcessor(width, height, mask);
+    }
+
+    /**
+     * Computes the mask only on spans of pixels and keeps the given values elsewhere,
+     * without filling holes
+     *
+     * @param ip   input image, RGB or 8-bit, left unchanged
+     * @param mask initial mask with leaf pixels 255, overwritten inside the spans
+     * @param band per row sorted pairs of start (inclusive) and end (exclusive) x
+     */
+    public void compute(ImageProcessor ip, final byte[] mask, final int[][] band) {
+        allocate(ip.getWidth(), ip.getHeight());
+        //pixels each pass has to compute, from the last pass back to the first
+        final int[][] closedSpans = dilate(band, 0, erodeRadius, width);
+        final int[][] dilatedSpans = dilate(closedSpans, erodeRadius, dilateRadius, width);
+        final int[][] rowMinSpans = dilate(dilatedSpans, dilateRadius, radius, width);
+        final int[][] blurredSpans = dilate(dilatedSpans, dilateRadius + radius, radius, width);
+        final int[][] blurXSpans = dilate(blurredSpans, 0, kernelY[0].length - 1, width);
+
+        if (ip instanceof ColorProcessor) {
+            double[] weights = ((ColorProcessor) ip).getRGBWeights();
+            if (weights == null) {
+                weights = ColorProcessor.getWeightingFactors();
+            }
+            blurRgb((int[]) ip.getPixels(), weights, blurXSpans);
+        } else {
+            ImageProcessor gray = ip instanceof ByteProcessor ? ip : ip.convertToByte(true);
+            blurGray((byte[]) gray.getPixels(), blurXSpans);
+        }
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                blurY(from, to, blurredSpans);
+            }
+        });
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                threshold(from, to, rowMinSpans, dilatedSpans);
+            }
+        });
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                dilateYErodeX(from, to, closedSpans);
+            }
+        });
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                erodeY(from, to, band, mask);
+            }
+        });
+    }
+
+    /**
+     * Grows spans of pixels by a rectangle, the result is clipped to the image width
+     *
+     * @param spans per row sorted pairs of start (inclusive) and end (exclusive) x
+     * @param rx    horizontal radius
+     * @param ry    vertical radius
+     * @param width image width
+     * @return grown spans, sorted and merged per row
+     */
+    static int[][] dilate(int[][] spans, int rx, int ry, int width) {
+        int height = spans.length;
+        int[][] result = new int[height][];
+        for (int y = 0; y < height; y++) {
+            int top = Math.max(y - ry, 0);
+            int bottom = Math.min(y + ry, height - 1);
+            int count = 0;
+            for (int source = top; source <= bottom; source++) {
+                count += spans[source].length / 2;
+            }
+            //start in the upper half of a long, so sorting keeps the pairs together
+            long[] pairs = new long[count];
+            count = 0;
+            for (int source = top; source <= bottom; source++) {
+                int[] row = spans[source];
+                for (int i = 0; i < row.length; i += 2) {
+                    long start = Math.max(row[i] - rx, 0);
+                    long end = Math.min(row[i + 1] + rx, width);
+                    pairs[count++] = start << 32 | end;
+                }
+            }
+            Arrays.sort(pairs);
+            int[] merged = new int[2 * count];
+            int n = 0;
+            for (long pair : pairs) {
+                int start = (int) (pair >>> 32);
+                int end = (int) pair;
+                if (n > 0 && start <= merged[n - 1]) {
+                    merged[n - 1] = Math.max(merged[n - 1], end);
+                } else {
+                    merged[n++] = start;
+                    merged[n++] = end;
+                }
+            }
+            result[y] = Arrays.copyOf(merged, n);
+        }
+        return result;
+    }
+
+    private void allocate(int w, int h) {
+        if (w == width && h == height) {
+            return;
+        }
+        width = w;
+        height = h;
+        GaussianBlur gb = new GaussianBlur();
+        kernelX = gb.makeGaussianKernel(sigma, BLUR_ACCURACY, w);
+        kernelY = gb.makeGaussianKernel(sigma, BLUR_ACCURACY, h);
+        blurX = new float[w * h];
+        blurred = new byte[w * h];
+        dilated = new byte[w * h];
+        closed = new byte[w * h];
+        stack = new int[w * h];
+    }
+
+    private void run(RowPass pass) {
+        ForkJoinPool.commonPool().invoke(new BandTask(pass, 0, height));
+    }
+
+    /**
+     * Grayscale conversion of "8-bit" fused with the horizontal blur
+     */
+    private void blurRgb(final int[] pixels, double[] weights, final int[][] spans) {
+        final double rw = weights[0], gw = weights[1], bw = weights[2];
+        final int kRadius = kernelX[0].length;
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                float[] line = new float[width];
+                for (int y = from; y < to; y++) {
+                    int[] row = spans[y];
+                    for (int s = 0; s < row.length; s += 2) {
+                        int end = Math.min(row[s + 1] + kRadius, width);
+                        for (int x = Math.max(row[s] - kRadius, 0), i = y * width + x; x < end; x++, i++) {
+                            int c = pixels[i];
+                            //rounded like TypeConverter, then read as float like GaussianBlur does
+                            line[x] = (int) (((c >> 16) & 0xff) * rw + ((c >> 8) & 0xff) * gw + (c & 0xff) * bw + 0.5) & 0xff;
+                        }
+                    }
+                    convolveLine(line, blurX, y * width, kernelX, row);
+                }
+            }
+        });
+    }
+
+    private void blurGray(final byte[] pixels, final int[][] spans) {
+        final int kRadius = kernelX[0].length;
+        run(new RowPass() {
+            @Override
+            public void run(int from, int to) {
+                float[] line = new float[width];
+                for (int y = from; y < to; y++) {
+                    int[] row = spans[y];
+                    for (int s = 0; s < row.length; s += 2) {
+                        int end = Math.min(row[s + 1] + kRadius, width);
+                        for (int x = Math.max(row[s] - kRadius, 0), i = y * width + x; x < end; x++, i++) {
+                            line[x] = pixels[i] & 0xff;
+                        }
+                    }
+                    convolveLine(line, blurX, y * width, kernelX, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Spans of one line of the Gaussian blur with the edge pixels continued outside,
+     * the operations are in the order of ImageJ's GaussianBlur so the float results are identical
+     */
+    private static void convolveLine(float[] input, float[] output, int offset, float[][] kernel, int[] spans) {
+        int length = input.length;
+        float[] kern = kernel[0];
+        float[] kernSum = kernel[1];
+        int kRadius = kern.length;
+        int firstPart = kRadius < length ? kRadius : length;
+        int insideEnd = length - kRadius;
+        for (int s = 0; s < spans.length; s += 2) {
+            int end = spans[s + 1];
+            for (int i = spans[s]; i < end; i++) {
+                float result;
+                if (i < firstPart) {
+                    result = edgeValue(input, i, kern, kernSum, i + kRadius > length);
+                } else if (i < insideEnd) {
+                    result = input[i] * kern[0];
+                    for (int k = 1; k < kRadius; k++) {
+                        result += kern[k] * (input[i - k] + input[i + k]);
+                    }
+                } else {
+                    result = edgeValue(input, i, kern, kernSum, i + kRadius >= length);
+                }
+                output[offset + i] = result;
+            }
+        }
+    }
+
+    private static float edgeValue(float[] input, int i, float[] kern, float[] kernSum, boolean beyondEnd) {
+        int length = input.length;
+        int kRadius = kern.length;
+        float result = input[i] * kern[0];
+        if (i < kRadius) {
+            result += kernSum[i] * input[0];
+        }
+        if (beyondEnd) {
+            result += kernSum[length - i - 1] * input[length - 1];
+        }
+        for (int k = 1; k < kRadius; k++) {
+            float v = 0;
+            if (i - k >= 0) {
+                v += input[i - k];
+            }
+            if (i + k < length) {
+                v += input[i + k];
+            }
+            result += kern[k] * v;
+        }
+        return result;
+    }
+
+    /**
+     * Vertical blur, row by row with the same operations per pixel as convolveLine on a column
+     */
+    private void blurY(int from, int to, int[][] spans) {
+        float[] kern = kernelY[0];
+        float[] kernSum = kernelY[1];
+        int kRadius = kern.length;
+        int lastRow = (height - 1) * width;
+        float[] result = new float[width];
+        for (int y = from; y < to; y++) {
+            int row = y * width;
+            boolean inside = y >= kRadius && y < height - kRadius;
+            boolean beyondEnd = y < kRadius ? y + kRadius > height : y + kRadius >= height;
+            int[] rowSpans = spans[y];
+            for (int s = 0; s < rowSpans.length; s += 2) {
+                int start = rowSpans[s];
+                int end = rowSpans[s + 1];
+                for (int x = start; x < end; x++) {
+                    result[x] = blurX[row + x] * kern[0];
+                }
+                if (!inside) {
+                    if (y < kRadius) {
+                        for (int x = start; x < end; x++) {
+                            result[x] += kernSum[y] * blurX[x];
+                        }
+                    }
+                    if (beyondEnd) {
+                        for (int x = start; x < end; x++) {
+                            result[x] += kernSum[height - y - 1] * blurX[lastRow + x];
+                        }
+                    }
+                }
+                for (int k = 1; k < kRadius; k++) {
+                    int above = (y - k) * width;
+                    int below = (y + k) * width;
+                    float kk = kern[k];
+                    if (y - k >= 0 && y + k < height) {
+                        for (int x = start; x < end; x++) {
+                            result[x] += kk * (blurX[above + x] + blurX[below + x]);
+                        }
+                    } else if (y - k >= 0) {
+                        for (int x = start; x < end; x++) {
+                            result[x] += kk * blurX[above + x];
+                        }
+                    } else if (y + k < height) {
+                        for (int x = start; x < end; x++) {
+                            result[x] += kk * blurX[below + x];
+                        }
+                    }
+                }
+                //back to 8-bit with rounding like ByteProcessor.setPixels
+                for (int x = start; x < end; x++) {
+                    float value = result[x] + 0.5f;
+                    blurred[row + x] = (byte) (value < 0f ? 0 : value > 255f ? 255 : (int) value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bernsen threshold with a circular window, followed by the horizontal part of the dilation.
+     * The window minimum/maximum is the min/max over its rows of the row minima/maxima
+     * of the matching half width, these are kept in a ring of 2 * radius + 1 rows.
+     */
+    private void threshold(int from, int to, int[][] rowMinSpans, int[][] spans) {
+        int rows = 2 * radius + 1;
+        byte[][][] rowMin = new byte[rows][radius + 1][];  // [ring row][half width][x], only used widths
+        byte[][][] rowMax = new byte[rows][radius + 1][];
+        for (int r = 0; r < rows; r++) {
+            for (int dy = 0; dy <= radius; dy++) {
+                int w = lineWidths[dy + radius];
+                if (rowMin[r][w] == null) {
+                    rowMin[r][w] = new byte[width];
+                    rowMax[r][w] = new byte[width];
+                }
+            }
+        }
+        byte[] lastMin = new byte[width];
+        byte[] lastMax = new byte[width];
+        byte[] nextMin = new byte[width];
+        byte[] nextMax = new byte[width];
+        int[] min = new int[width];
+        int[] max = new int[width];
+        byte[] leaf = new byte[width];
+
+        int filled = Math.max(from - radius, 0);  // next source row to put into the ring
+        for (int y = from; y < to; y++) {
+            int lastSource = Math.min(y + radius, height - 1);
+            for (; filled <= lastSource; filled++) {
+                int[] sourceSpans = rowMinSpans[filled];
+                for (int s = 0; s < sourceSpans.length; s += 2) {
+                    slidingMinMax(filled, sourceSpans[s], sourceSpans[s + 1], rowMin[filled % rows],
+                            rowMax[filled % rows], lastMin, lastMax, nextMin, nextMax);
+                }
+            }
+            int row = y * width;
+            int[] rowSpans = spans[y];
+            for (int s = 0; s < rowSpans.length; s += 2) {
+                int start = Math.max(rowSpans[s] - dilateRadius, 0);
+                int end = Math.min(rowSpans[s + 1] + dilateRadius, width);
+                for (int x = start; x < end; x++) {
+                    min[x] = 255;
+                    max[x] = 0;
+                }
+                for (int dy = -radius; dy <= radius; dy++) {
+                    int source = y + dy;
+                    if (source < 0 || source >= height) {
+                        continue;
+                    }
+                    int w = lineWidths[dy + radius];
+                    byte[] sMin = rowMin[source % rows][w];
+                    byte[] sMax = rowMax[source % rows][w];
+                    for (int x = start; x < end; x++) {
+                        int vMin = sMin[x] & 0xff;
+                        int vMax = sMax[x] & 0xff;
+                        if (vMin < min[x]) {
+                            min[x] = vMin;
+                        }
+                        if (vMax > max[x]) {
+                            max[x] = vMax;
+                        }
+                    }
+                }
+                for (int x = start; x < end; x++) {
+                    int midGray = (min[x] + max[x]) / 2;
+                    boolean bright = max[x] - min[x] < CONTRAST_THRESHOLD ? midGray >= 128 : (blurred[row + x] & 0xff) >= midGray;
+                    leaf[x] = bright ? BACKGROUND : LEAF;  // the leaf is darker than the paper
+                }
+            }
+            //horizontal part of the 5x5 dilation
+            for (int s = 0; s < rowSpans.length; s += 2) {
+                int end = rowSpans[s + 1];
+                for (int x = rowSpans[s]; x < end; x++) {
+                    byte value = BACKGROUND;
+                    for (int dx = Math.max(x - dilateRadius, 0), last = Math.min(x + dilateRadius, width - 1); dx <= last; dx++) {
+                        if (leaf[dx] != BACKGROUND) {
+                            value = LEAF;
+                            break;
+                        }
+                    }
+                    dilated[row + x] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Minimum and maximum of a span of one blurred row for all half widths of the kernel,
+     * width w is the min/max of width w - 1 one pixel to the left and to the right
+     */
+    private void slidingMinMax(int y, int start, int end, byte[][] rowMin, byte[][] rowMax,
+                               byte[] lastMin, byte[] lastMax, byte[] nextMin, byte[] nextMax) {
+        int row = y * width;
+        int lastX = width - 1;
+        //width w is needed on the span grown by radius - w
+        int from = Math.max(start - radius + 1, 0);
+        int to = Math.min(end + radius - 1, width);
+        for (int x = from; x < to; x++) {
+            int v = blurred[row + x] & 0xff;
+            int left = blurred[row + Math.max(x - 1, 0)] & 0xff;
+            int right = blurred[row + Math.min(x + 1, lastX)] & 0xff;
+            lastMin[x] = (byte) Math.min(v, Math.min(left, right));
+            lastMax[x] = (byte) Math.max(v, Math.max(left, right));
+        }
+        for (int w = 1; ; w++) {
+            if (rowMin[w] != null) {
+                System.arraycopy(lastMin, start, rowMin[w], start, end - start);
+                System.arraycopy(lastMax, start, rowMax[w], start, end - start);
+            }
+            if (w == radius) {
+                break;
+            }
+            from = Math.max(start - radius + w + 1, 0);
+            to = Math.min(end + radius - w - 1, width);
+            for (int x = from; x < to; x++) {
+                int left = Math.max(x - 1, 0);
+                int right = Math.min(x + 1, lastX);
+                nextMin[x] = (byte) Math.min(lastMin[left] & 0xff, lastMin[right] & 0xff);
+                nextMax[x] = (byte) Math.max(lastMax[left] & 0xff, lastMax[right] & 0xff);
+            }
+            byte[] swap = lastMin;
+            lastMin = nextMin;
+            nextMin = swap;
+            swap = lastMax;
+            lastMax = nextMax;
+            nextMax = swap;
+        }
+    }
+
+    /**
+     * Vertical part of the dilation and horizontal part of the erosion
+     */
+    private void dilateYErodeX(int from, int to, int[][] spans) {
+        byte[] line = new byte[width];
+        for (int y = from; y < to; y++) {
+            int top = Math.max(y - dilateRadius, 0);
+            int bottom = Math.min(y + dilateRadius, height - 1);
+            int row = y * width;
+            int[] rowSpans = spans[y];
+            for (int s = 0; s < rowSpans.length; s += 2) {
+                int start = rowSpans[s];
+                int end = rowSpans[s + 1];
+                for (int x = Math.max(start - erodeRadius, 0), last = Math.min(end + erodeRadius, width); x < last; x++) {
+                    byte value = BACKGROUND;
+                    for (int dy = top; dy <= bottom; dy++) {
+                        if (dilated[dy * width + x] != BACKGROUND) {
+                            value = LEAF;
+                            break;
+                        }
+                    }
+                    line[x] = value;
+                }
+                for (int x = start; x < end; x++) {
+                    //the erosion counts pixels outside of the image as background
+                    byte value = x < erodeRadius || x >= width - erodeRadius ? BACKGROUND : LEAF;
+                    for (int dx = x - erodeRadius, last = x + erodeRadius; value == LEAF && dx <= last; dx++) {
+                        if (line[dx] == BACKGROUND) {
+                            value = BACKGROUND;
+                        }
+                    }
+                    closed[row + x] = value;
+                }
+            }
+        }
+    }
+
+    private void erodeY(int from, int to, int[][] spans, byte[] mask) {
+        for (int y = from; y < to; y++) {
+            int row = y * width;
+            boolean edge = y < erodeRadius || y >= height - erodeRadius;
+            int[] rowSpans = spans[y];
+            for (int s = 0; s < rowSpans.length; s += 2) {
+                int end = rowSpans[s + 1];
+                for (int x = rowSpans[s]; x < end; x++) {
+                    byte value = edge ? BACKGROUND : LEAF;
+                    for (int dy = y - erodeRadius, last = y + erodeRadius; value == LEAF && dy <= last; dy++) {
+                        if (closed[dy * width + x] == BACKGROUND) {
+                            value = BACKGROUND;
+                        }
+                    }
+                    mask[row + x] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill holes: background reached from the image border (4-connected) stays background,
+     * everything else becomes leaf
+     */
+    private void fillHoles(byte[] mask) {
+        final byte reached = 1;
+        int size = 0;
+        for (int x = 0; x < width; x++) {
+            size = push(mask, x, size, reached);
+            size = push(mask, (height - 1) * width + x, size, reached);
+        }
+        for (int y = 0; y < height; y++) {
+            size = push(mask, y * width, size, reached);
+            size = push(mask, y * width + width - 1, size, reached);
+        }
+        while (size > 0) {
+            int i = stack[--size];
+            int x = i % width;
+            if (x > 0) {
+                size = push(mask, i - 1, size, reached);
+            }
+            if (x < width - 1) {
+                size = push(mask, i + 1, size, reached);
+            }
+            if (i >= width) {
+                size = push(mask, i - width, size, reached);
+            }
+            if (i < (height - 1) * width) {
+                size = push(mask, i + width, size, reached);
+            }
+        }
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = mask[i] == reached ? BACKGROUND : LEAF;
+        }
+    }
+
+    private int push(byte[] mask, int i, int size, byte reached) {
+        if (mask[i] == BACKGROUND) {
+            mask[i] = reached;
+            stack[size++] = i;
+        }
+        return size;
+    }
+}
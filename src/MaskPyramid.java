@@ -0,0 +1,465 @@
+/**
+ * MaskPyramid This class builds the binary leaf mask on a downscaled image
+ * and refines it at full resolution only in a band around the leaf outline
+ * <p>
+ * The image is reduced by 2^level with box averaging, the MaskEngine runs on
+ * it with blur and Bernsen radius scaled down, and the largest 8-connected
+ * particle (minimum size scaled by the same factor squared) is taken as the leaf.
+ * Its outline is mapped back to full resolution and the MaskEngine recomputes
+ * all pixels within the band, so the outline has full resolution accuracy
+ * as long as the coarse outline is less than the band width off. Everything
+ * outside the band keeps the coarse value, so holes are filled on the band
+ * only: between two spans of the band a row is one run of leaf or background.
+ * Where the largest refined particle and the coarse particle disagree at the
+ * edge of the band, background reaching into the coarse leaf (deep sinuses
+ * of lobed leaves) or leaf growing past the coarse outline (parts the coarse
+ * mask lost), the band grows around these pixels and only the new pixels are
+ * computed. If the outline still leaves the band after a few rounds, the
+ * whole image is prepared again at full resolution. Other particles within
+ * the band do not count, the pipeline only keeps the largest one. The same
+ * fallback happens if another coarse particle, its pixels grown by the band,
+ * could hold as many pixels as the refined leaf: at full resolution it might
+ * be the largest particle (a leaf that fell apart at low resolution next to
+ * a shadow along the image border).
+ * Not thread safe, use one pyramid per thread.
+ *
+ * @author Karina Becker
+ */
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class MaskPyramid {
+    private static final byte LEAF = (byte) 255;
+    private static final byte BACKGROUND = 0;
+    private static final int MAX_GROWTH = 3;          // times the band grows where the outline leaves it
+    private static final int COARSE_DILATE_RADIUS = 1;  // smaller closing, the full one merges the lobes of a reduced leaf
+    private static final int COARSE_ERODE_RADIUS = 1;
+    private final int level;
+    private final int factor;        // 2^level
+    private final int margin;        // half width of the refined band in full resolution pixels
+    private final MaskEngine coarseEngine;
+    private final MaskEngine fineEngine;
+    private final ComponentLabeler labeler = new ComponentLabeler();
+    private byte[] particle = new byte[0]; // largest refined particle, reused
+    //background runs of the band fill, see fillHoles()
+    private int[] runStart = new int[1024];
+    private int[] runEnd = new int[1024];
+    private int[] runRow = new int[1024];
+    private int[] parent = new int[1024];
+    private int runCount;
+    private int[] holes = new int[96];     // hole runs filled in the last round: row, start, end
+    private int holeCount;
+    private int[] differing = new int[64]; // differing band edge pixels of one row
+    private int count;
+
+    /**
+     * @param level number of halvings, 0 prepares the mask at full resolution only
+     */
+    public MaskPyramid(int level) {
+        if (level < 0 || level > 4) {
+            throw new IllegalArgumentException("Pyramid level must be 0 to 4");
+        }
+        this.level = level;
+        this.factor = 1 << level;
+        this.margin = 4 * factor + 4;
+        this.coarseEngine = new MaskEngine(MaskEngine.DEFAULT_SIGMA / factor,
+                Math.max(1, (int) Math.round((double) MaskEngine.DEFAULT_RADIUS / factor)),
+                COARSE_DILATE_RADIUS, COARSE_ERODE_RADIUS);
+        this.fineEngine = new MaskEngine();
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Builds the binary leaf mask
+     *
+     * @param ip      input image, RGB or 8-bit, left unchanged
+     * @param minArea minimum leaf size in full resolution pixels
+     * @return mask with leaf pixels 255 and background 0, only the leaf and
+     * whatever lies within the band around it at full resolution
+     */
+    public ByteProcessor prepare(ImageProcessor ip, double minArea) {
+        if (level == 0) {
+            return fineEngine.prepare(ip);
+        }
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        ByteProcessor small = downscale(ip, factor);
+        int smallWidth = small.getWidth();
+        int smallHeight = small.getHeight();
+        byte[] coarse = (byte[]) coarseEngine.prepare(small).getPixels();
+        List<ComponentLabeler.Component> particles = labeler.findAll(coarse, smallWidth, smallHeight, LEAF, 1);
+        int area = labeler.findLargest(coarse, smallWidth, smallHeight, LEAF);
+        if (area == 0 || area < minArea / (factor * factor)) {
+            //nothing found at low resolution, the full resolution mask decides
+            return fineEngine.prepare(ip);
+        }
+        //largest full resolution area any other particle could reach
+        long rivalArea = 0;
+        for (ComponentLabeler.Component c : particles) {
+            if ((c.startX != labeler.getStartX() || c.startY != labeler.getStartY())
+                    && (long) (c.bounds.width * factor + 2 * margin) * (c.bounds.height * factor + 2 * margin) > rivalArea) {
+                rivalArea = Math.max(rivalArea, reach(c));
+            }
+        }
+        labeler.keepLargest(coarse, smallWidth, LEAF);
+        holeCount = 0;
+
+        //map the particle back and collect its outline pixels as spans of full resolution rows
+        byte[] mask = new byte[width * height];
+        int[][] outline = new int[height][];
+        int[] spans = new int[2 * smallWidth];
+        for (int sy = 0; sy < smallHeight; sy++) {
+            int n = 0;
+            int row = sy * smallWidth;
+            for (int sx = 0; sx < smallWidth; sx++) {
+                if (coarse[row + sx] != LEAF) {
+                    continue;
+                }
+                int x0 = sx * factor;
+                int x1 = Math.min(x0 + factor, width);
+                for (int y = sy * factor, yEnd = Math.min(y + factor, height); y < yEnd; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        mask[y * width + x] = LEAF;
+                    }
+                }
+                if (isOutline(coarse, sx, sy, smallWidth, smallHeight)) {
+                    if (n > 0 && spans[n - 1] == x0) {
+                        spans[n - 1] = x1;
+                    } else {
+                        spans[n++] = x0;
+                        spans[n++] = x1;
+                    }
+                }
+            }
+            int[] rowSpans = Arrays.copyOf(spans, n);
+            for (int y = sy * factor, yEnd = Math.min(y + factor, height); y < yEnd; y++) {
+                outline[y] = rowSpans;
+            }
+        }
+        int[][] band = MaskEngine.dilate(outline, margin, margin, width);
+        int[][] pending = band;  // pixels computed in this round
+        if (particle.length != mask.length) {
+            particle = new byte[mask.length];
+        }
+        for (int round = 0; ; round++) {
+            //holes filled in the last round are background again, the grown band may connect them
+            for (int i = 0; i < holeCount; i += 3) {
+                Arrays.fill(mask, holes[i] * width + holes[i + 1], holes[i] * width + holes[i + 2], BACKGROUND);
+            }
+            fineEngine.compute(ip, mask, pending);
+            fillHoles(mask, band, width);
+            if (labeler.findLargest(mask, width, height, LEAF) <= rivalArea) {
+                //another particle might be the largest at full resolution
+                return fineEngine.prepare(ip);
+            }
+            labeler.keepLargest(particle, width, LEAF);
+            int[][] edge = disagreements(particle, coarse, band, width, smallWidth);
+            if (edge == null) {
+                return new ByteProcessor(width, height, mask);
+            }
+            if (round == MAX_GROWTH) {
+                //the full resolution outline keeps leaving the band, the coarse particle was wrong there
+                return fineEngine.prepare(ip);
+            }
+            //refine around the pixels that disagree and check the edge of the grown band
+            pending = MaskEngine.dilate(edge, margin, margin, width);
+            band = union(band, pending, width);
+        }
+    }
+
+    /**
+     * Upper bound of the full resolution area of a coarse particle: its pixels grown by the band
+     */
+    private long reach(ComponentLabeler.Component c) {
+        int grow = (margin + factor - 1) / factor;
+        byte[] pixels = (byte[]) c.mask.getPixels();
+        int[][] rows = new int[c.bounds.height + 2 * grow][];
+        Arrays.fill(rows, new int[0]);
+        int[] runs = new int[c.bounds.width + 1];
+        for (int y = 0; y < c.bounds.height; y++) {
+            int n = 0;
+            for (int x = 0, i = y * c.bounds.width; x < c.bounds.width; x++, i++) {
+                if (pixels[i] == LEAF && (x == 0 || pixels[i - 1] != LEAF)) {
+                    runs[n++] = x + grow;
+                }
+                if (pixels[i] == LEAF && (x == c.bounds.width - 1 || pixels[i + 1] != LEAF)) {
+                    runs[n++] = x + grow + 1;
+                }
+            }
+            rows[y + grow] = Arrays.copyOf(runs, n);
+        }
+        long area = 0;
+        for (int[] row : MaskEngine.dilate(rows, grow, grow, c.bounds.width + 2 * grow)) {
+            for (int i = 0; i < row.length; i += 2) {
+                area += row[i + 1] - row[i];
+            }
+        }
+        return area * factor * factor;
+    }
+
+    /**
+     * Fills the holes of the mask like the MaskEngine, but only reads the pixels of the band:
+     * between two spans of the band a row keeps the value of the coarse particle, so each gap
+     * is one run. Background runs of neighbouring rows that overlap (4-connected) are joined
+     * with union-find, runs not joined to one at the image border are holes. The hole runs are
+     * kept as row, start and end, so the next round can restore them
+     */
+    private void fillHoles(byte[] mask, int[][] band, int width) {
+        int height = band.length;
+        runCount = 0;
+        int previousFirst = 0;  // runs of the previous row
+        int previousEnd = 0;
+        for (int y = 0; y < height; y++) {
+            int first = runCount;
+            int row = y * width;
+            int[] spans = band[y];
+            int from = -1;  // start of the open background run
+            int x = 0;
+            for (int i = 0; ; i += 2) {
+                int start = i < spans.length ? spans[i] : width;
+                if (x < start) {
+                    //the gap is one value
+                    if (mask[row + x] == BACKGROUND) {
+                        from = from < 0 ? x : from;
+                    } else if (from >= 0) {
+                        addRun(y, from, x);
+                        from = -1;
+                    }
+                }
+                if (i == spans.length) {
+                    break;
+                }
+                for (x = start; x < spans[i + 1]; x++) {
+                    if (mask[row + x] == BACKGROUND) {
+                        from = from < 0 ? x : from;
+                    } else if (from >= 0) {
+                        addRun(y, from, x);
+                        from = -1;
+                    }
+                }
+            }
+            if (from >= 0) {
+                addRun(y, from, width);
+            }
+            //join the overlapping runs of the previous row
+            int a = previousFirst;
+            int b = first;
+            while (a < previousEnd && b < runCount) {
+                if (runEnd[a] > runStart[b] && runEnd[b] > runStart[a]) {
+                    union(a, b);
+                }
+                if (runEnd[a] < runEnd[b]) {
+                    a++;
+                } else {
+                    b++;
+                }
+            }
+            previousFirst = first;
+            previousEnd = runCount;
+        }
+        boolean[] reached = new boolean[runCount];
+        for (int i = 0; i < runCount; i++) {
+            if (runRow[i] == 0 || runRow[i] == height - 1 || runStart[i] == 0 || runEnd[i] == width) {
+                reached[find(i)] = true;
+            }
+        }
+        holeCount = 0;
+        for (int i = 0; i < runCount; i++) {
+            if (!reached[find(i)]) {
+                Arrays.fill(mask, runRow[i] * width + runStart[i], runRow[i] * width + runEnd[i], LEAF);
+                if (holeCount == holes.length) {
+                    holes = Arrays.copyOf(holes, 2 * holes.length);
+                }
+                holes[holeCount++] = runRow[i];
+                holes[holeCount++] = runStart[i];
+                holes[holeCount++] = runEnd[i];
+            }
+        }
+    }
+
+    private void addRun(int y, int start, int end) {
+        if (runCount == runStart.length) {
+            int size = 2 * runCount;
+            runStart = Arrays.copyOf(runStart, size);
+            runEnd = Arrays.copyOf(runEnd, size);
+            runRow = Arrays.copyOf(runRow, size);
+            parent = Arrays.copyOf(parent, size);
+        }
+        runStart[runCount] = start;
+        runEnd[runCount] = end;
+        runRow[runCount] = y;
+        parent[runCount] = runCount;
+        runCount++;
+    }
+
+    private int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
+    /**
+     * Spans of both sets merged per row
+     */
+    private static int[][] union(int[][] a, int[][] b, int width) {
+        int[][] joined = new int[a.length][];
+        for (int y = 0; y < a.length; y++) {
+            joined[y] = Arrays.copyOf(a[y], a[y].length + b[y].length);
+            System.arraycopy(b[y], 0, joined[y], a[y].length, b[y].length);
+        }
+        return MaskEngine.dilate(joined, 0, 0, width);
+    }
+
+    /**
+     * Compares the largest refined particle with the coarse particle along the edge of the band,
+     * where both have to agree if the full resolution outline lies within the band
+     *
+     * @return per row the refined pixels at the band edge that differ from the coarse particle,
+     * background within the coarse particle or leaf outside of it, as unsorted pairs of start and end x;
+     * null if there is none
+     */
+    private int[][] disagreements(byte[] mask, byte[] coarse, int[][] band, int width, int smallWidth) {
+        int height = band.length;
+        int[][] edge = new int[height][];
+        boolean found = false;
+        for (int y = 0; y < height; y++) {
+            int[] spans = band[y];
+            count = 0;
+            for (int i = 0; i < spans.length; i += 2) {
+                int start = spans[i];
+                int end = spans[i + 1];
+                //left and right edge, the image border is no band edge
+                if (start > 0) {
+                    compare(mask, coarse, start, y, width, smallWidth);
+                }
+                if (end < width) {
+                    compare(mask, coarse, end - 1, y, width, smallWidth);
+                }
+                //upper and lower edge: pixels without band pixel above or below
+                if (y > 0) {
+                    compareUncovered(mask, coarse, start, end, y, band[y - 1], width, smallWidth);
+                }
+                if (y < height - 1) {
+                    compareUncovered(mask, coarse, start, end, y, band[y + 1], width, smallWidth);
+                }
+            }
+            edge[y] = Arrays.copyOf(differing, count);
+            found |= count > 0;
+        }
+        return found ? edge : null;
+    }
+
+    /**
+     * Compares the pixels from start to end of row y that are not covered by the spans of the neighbouring row
+     */
+    private void compareUncovered(byte[] mask, byte[] coarse, int start, int end, int y, int[] neighbour,
+                                  int width, int smallWidth) {
+        int x = start;
+        for (int j = 0; j < neighbour.length && x < end; j += 2) {
+            if (neighbour[j + 1] <= x) {
+                continue;
+            }
+            for (int gapEnd = Math.min(neighbour[j], end); x < gapEnd; x++) {
+                compare(mask, coarse, x, y, width, smallWidth);
+            }
+            x = Math.max(x, neighbour[j + 1]);
+        }
+        for (; x < end; x++) {
+            compare(mask, coarse, x, y, width, smallWidth);
+        }
+    }
+
+    /**
+     * Records pixel x as a span of differing pixels if the refined and the coarse particle differ there
+     */
+    private void compare(byte[] mask, byte[] coarse, int x, int y, int width, int smallWidth) {
+        if ((mask[y * width + x] == LEAF) != (coarse[(y / factor) * smallWidth + x / factor] == LEAF)) {
+            if (count == differing.length) {
+                differing = Arrays.copyOf(differing, 2 * count);
+            }
+            if (count > 0 && differing[count - 1] == x) {
+                differing[count - 1] = x + 1;
+            } else {
+                differing[count++] = x;
+                differing[count++] = x + 1;
+            }
+        }
+    }
+
+    /**
+     * A particle pixel is on the outline if a 4-neighbour is background or outside of the image
+     */
+    private static boolean isOutline(byte[] mask, int x, int y, int width, int height) {
+        int i = y * width + x;
+        return x == 0 || y == 0 || x == width - 1 || y == height - 1
+                || mask[i - 1] != LEAF || mask[i + 1] != LEAF || mask[i - width] != LEAF || mask[i + width] != LEAF;
+    }
+
+    /**
+     * Grayscale image reduced by box averaging, the last block of a row or column may be smaller
+     *
+     * @param ip     input image, RGB or 8-bit
+     * @param factor reduction factor
+     * @return reduced 8-bit image
+     */
+    static ByteProcessor downscale(ImageProcessor ip, int factor) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int smallWidth = (width + factor - 1) / factor;
+        int smallHeight = (height + factor - 1) / factor;
+        int[] sums = new int[smallWidth * smallHeight];
+        int[] counts = new int[smallWidth * smallHeight];
+        if (ip instanceof ColorProcessor) {
+            double[] weights = ((ColorProcessor) ip).getRGBWeights();
+            if (weights == null) {
+                weights = ColorProcessor.getWeightingFactors();
+            }
+            int[] pixels = (int[]) ip.getPixels();
+            for (int y = 0; y < height; y++) {
+                int smallRow = (y / factor) * smallWidth;
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    int c = pixels[i];
+                    int gray = (int) (((c >> 16) & 0xff) * weights[0] + ((c >> 8) & 0xff) * weights[1]
+                            + (c & 0xff) * weights[2] + 0.5);
+                    sums[smallRow + x / factor] += gray;
+                    counts[smallRow + x / factor]++;
+                }
+            }
+        } else {
+            ImageProcessor gray = ip instanceof ByteProcessor ? ip : ip.convertToByte(true);
+            byte[] pixels = (byte[]) gray.getPixels();
+            for (int y = 0; y < height; y++) {
+                int smallRow = (y / factor) * smallWidth;
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    sums[smallRow + x / factor] += pixels[i] & 0xff;
+                    counts[smallRow + x / factor]++;
+                }
+            }
+        }
+        byte[] small = new byte[sums.length];
+        for (int i = 0; i < small.length; i++) {
+            small[i] = (byte) ((sums[i] + counts[i] / 2) / counts[i]);
+        }
+        return new ByteProcessor(smallWidth, smallHeight, small);
+    }
+}
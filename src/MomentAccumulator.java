@@ -0,0 +1,124 @@
+/**
+ * MomentAccumulator This class collects the raw image moments up to order 3
+ * in a single pass and derives the central, normalized and Hu moments from
+ * them in closed form
+ * <p>
+ * Rows are added one at a time with their column weighted sums, so the pixel
+ * source only has to be walked once. The first moment index refers to the row
+ * coordinate and the second one to the column coordinate, as in ImageMoments.
+ * Coordinates may be given relative to any origin (e.g. the image centre),
+ * central moments are translation invariant and smaller coordinates keep the
+ * closed form conversion numerically stable.
+ *
+ * @author Karina Becker
+ */
+
+public class MomentAccumulator {
+    private double m00, m10, m01, m20, m11, m02, m30, m21, m12, m03; // raw moments
+
+    /**
+     * Adds one row of intensities to the raw moments
+     *
+     * @param r  row coordinate
+     * @param s0 sum of intensities in the row
+     * @param s1 sum of column coordinate times intensity
+     * @param s2 sum of squared column coordinate times intensity
+     * @param s3 sum of cubed column coordinate times intensity
+     */
+    public void addRow(double r, double s0, double s1, double s2, double s3) {
+        double r2 = r * r;
+        double r3 = r2 * r;
+        m00 += s0;
+        m10 += r * s0;
+        m01 += s1;
+        m20 += r2 * s0;
+        m11 += r * s1;
+        m02 += s2;
+        m30 += r3 * s0;
+        m21 += r2 * s1;
+        m12 += r * s2;
+        m03 += s3;
+    }
+
+    /**
+     * Adds the raw moments of another accumulator with the same origin
+     *
+     * @param other accumulator to merge into this one
+     */
+    public void add(MomentAccumulator other) {
+        m00 += other.m00;
+        m10 += other.m10;
+        m01 += other.m01;
+        m20 += other.m20;
+        m11 += other.m11;
+        m02 += other.m02;
+        m30 += other.m30;
+        m21 += other.m21;
+        m12 += other.m12;
+        m03 += other.m03;
+    }
+
+    /**
+     * Adds raw moments computed elsewhere, e.g. from an outline, with the same origin
+     * as the rows; the first index of a moment is the row (y) and the second the column (x)
+     */
+    public void add(double m00, double m10, double m01, double m20, double m11, double m02,
+                    double m30, double m21, double m12, double m03) {
+        this.m00 += m00;
+        this.m10 += m10;
+        this.m01 += m01;
+        this.m20 += m20;
+        this.m11 += m11;
+        this.m02 += m02;
+        this.m30 += m30;
+        this.m21 += m21;
+        this.m12 += m12;
+        this.m03 += m03;
+    }
+
+    /**
+     * Derives the central and normalized moments and from those the Hu moments
+     * The 7th Hu moment is left out as in ImageMoments
+     *
+     * @return moments double array with six Hu moments
+     */
+    public double[] getHuMoments() {
+        double[] moments = new double[6];
+
+        //Central moments from raw moments
+        double x0 = m10 / m00;
+        double y0 = m01 / m00;
+        double mu20 = m20 - x0 * m10;
+        double mu02 = m02 - y0 * m01;
+        double mu11 = m11 - x0 * m01;
+        double mu30 = m30 - 3 * x0 * m20 + 2 * x0 * x0 * m10;
+        double mu03 = m03 - 3 * y0 * m02 + 2 * y0 * y0 * m01;
+        double mu21 = m21 - 2 * x0 * m11 - y0 * m20 + 2 * x0 * x0 * m01;
+        double mu12 = m12 - 2 * y0 * m11 - x0 * m02 + 2 * y0 * y0 * m10;
+
+        //Normalized central moments, gamma = ((p + q) / 2) + 1 in integer arithmetic is 2 for order 2 and 3
+        double m00gamma = m00 * m00;
+        double n20 = mu20 / m00gamma;
+        double n02 = mu02 / m00gamma;
+        double n11 = mu11 / m00gamma;
+        double n30 = mu30 / m00gamma;
+        double n03 = mu03 / m00gamma;
+        double n21 = mu21 / m00gamma;
+        double n12 = mu12 / m00gamma;
+
+        //Hu moments, same formulas as the stored database was created with
+        moments[0] = n20 + n02; // Hu1
+        moments[1] = Math.pow((n20 - 02), 2) + Math.pow(2 * n11, 2); // Hu2
+        moments[2] = Math.pow(n30 - (3 * (n12)), 2)
+                + Math.pow((3 * n21 - n03), 2); // Hu3
+        moments[3] = Math.pow((n30 + n12), 2) + Math.pow((n12 + n03), 2); // Hu4
+        moments[4] = (n30 - 3 * n12) * (n30 + n12)
+                * (Math.pow((n30 + n12), 2) - 3 * Math.pow((n21 + n03), 2))
+                + (3 * n21 - n03) * (n21 + n03)
+                * (3 * Math.pow((n30 + n12), 2) - Math.pow((n21 + n03), 2)); // Hu5
+        moments[5] = (n20 - n02)
+                * (Math.pow((n30 + n12), 2) - Math.pow((n21 + n03), 2)) + 4
+                * n11 * (n30 + n12) * (n21 + n03); // Hu6
+        return moments;
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * PipelineMetrics This class collects the instrumentation of the plant leaf
+ * recognition: latency histograms of every stage, counters of rejected
+ * images and histograms of contour point counts and database rows compared
+ * per query
+ * <p>
+ * The stages call start() and stop() around their work. While the metrics
+ * are disabled, which is the default, and no thread traces, start() returns
+ * 0 without reading the clock and stop() and the counters return at once, so
+ * the cost is the read of two flags. A thread can also trace the stages it
+ * runs itself between startTrace() and stopTrace(), e.g. to report the
+ * latencies of one request, with or without the metrics enabled. The metrics are exposed as JMX MBeans under the domain
+ * "plantLeafRecognition" and can be dumped periodically as text or csv.
+ * <p>
+ * System properties read by configure():
+ * leaf.metrics=true         enables the metrics and registers the MBeans
+ * leaf.metrics.dump=path    dump file, "-" for the console, csv if the path ends with .csv
+ * leaf.metrics.period=60    seconds between two dumps
+ *
+ * @author Karina Becker
+ */
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PipelineMetrics implements PipelineMetricsMBean {
+    public static final String DOMAIN = "plantLeafRecognition";
+    public static final long DEFAULT_DUMP_PERIOD = 60;   // seconds
+
+    //stages, index into the latency histograms
+    public static final int OPEN = 0;
+    public static final int HU_MOMENTS = 1;
+    public static final int PREPARATION = 2;
+    public static final int LARGEST_AREA = 3;
+    public static final int EFD = 4;
+    public static final int CLASSIFY = 5;
+    public static final int CLASSIFY_BATCH = 6;
+    private static final String[] STAGE_NAMES = {
+            "open", "huMoments", "preparation", "largestArea", "efd", "classify", "classifyBatch"};
+
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+    private static volatile boolean enabled;
+    private static final AtomicInteger tracing = new AtomicInteger();  // number of threads tracing
+    private static final ThreadLocal<Map<String, Double>> trace = new ThreadLocal<Map<String, Double>>();
+
+    private final Histogram[] stages = new Histogram[STAGE_NAMES.length];
+    private final Histogram contourPoints = new Histogram();
+    private final Histogram scannedRows = new Histogram();
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong rejectedEmptyContour = new AtomicLong();
+    private final AtomicLong rejectedAspectRatio = new AtomicLong();
+    private ScheduledExecutorService dumper;
+
+    private PipelineMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+    }
+
+    public static PipelineMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start of a stage
+     *
+     * @return current time, 0 if the metrics are disabled and no thread traces
+     */
+    public static long start() {
+        return enabled || tracing.get() != 0 ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * End of a stage, records its latency and adds it to the trace of the current thread
+     *
+     * @param stage stage constant
+     * @param start value returned by start()
+     */
+    public static void stop(int stage, long start) {
+        if (start != 0L) {
+            long latency = System.nanoTime() - start;
+            if (enabled) {
+                INSTANCE.stages[stage].record(latency);
+            }
+            Map<String, Double> stages = tracing.get() != 0 ? trace.get() : null;
+            if (stages != null) {
+                Double before = stages.get(STAGE_NAMES[stage]);
+                stages.put(STAGE_NAMES[stage], (before == null ? 0 : before) + latency / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Starts tracing the stages the current thread runs, a running trace is kept
+     */
+    public static void startTrace() {
+        if (trace.get() == null) {
+            trace.set(new LinkedHashMap<String, Double>());
+            tracing.incrementAndGet();
+        }
+    }
+
+    /**
+     * Ends the trace of the current thread
+     *
+     * @return milliseconds per stage name in the order the stages first ended,
+     * stages run by other threads are not included, empty without a trace
+     */
+    public static Map<String, Double> stopTrace() {
+        Map<String, Double> stages = trace.get();
+        if (stages == null) {
+            return Collections.emptyMap();
+        }
+        trace.remove();
+        tracing.decrementAndGet();
+        return stages;
+    }
+
+    /**
+     * Counts an image that entered the preparation
+     */
+    public static void countImage() {
+        if (enabled) {
+            INSTANCE.images.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts an image without a particle of the minimum size
+     */
+    public static void countEmptyContour() {
+        if (enabled) {
+            INSTANCE.rejectedEmptyContour.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts an image whose leaf exceeds the maximum aspect ratio
+     */
+    public static void countAspectRatio() {
+        if (enabled) {
+            INSTANCE.rejectedAspectRatio.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param points number of traced outline points of a leaf
+     */
+    public static void recordContourPoints(int points) {
+        if (enabled) {
+            INSTANCE.contourPoints.record(points);
+        }
+    }
+
+    /**
+     * @param rows number of database rows compared for one query
+     */
+    public static void recordScannedRows(int rows) {
+        if (enabled) {
+            INSTANCE.scannedRows.record(rows);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        PipelineMetrics.enabled = enabled;
+    }
+
+    @Override
+    public long getImages() {
+        return images.get();
+    }
+
+    @Override
+    public long getRejectedEmptyContour() {
+        return rejectedEmptyContour.get();
+    }
+
+    @Override
+    public long getRejectedAspectRatio() {
+        return rejectedAspectRatio.get();
+    }
+
+    /**
+     * @param stage stage constant
+     * @return latency histogram of the stage in nanoseconds
+     */
+    public Histogram getStage(int stage) {
+        return stages[stage];
+    }
+
+    public Histogram getContourPoints() {
+        return contourPoints;
+    }
+
+    public Histogram getScannedRows() {
+        return scannedRows;
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram stage : stages) {
+            stage.reset();
+        }
+        contourPoints.reset();
+        scannedRows.reset();
+        images.set(0);
+        rejectedEmptyContour.set(0);
+        rejectedAspectRatio.set(0);
+    }
+
+    /**
+     * Registers this object and all histograms with the platform MBean server,
+     * registering again has no effect
+     */
+    public synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, DOMAIN + ":type=Pipeline", this);
+            for (int i = 0; i < stages.length; i++) {
+                register(server, DOMAIN + ":type=Stage,name=" + STAGE_NAMES[i], stages[i]);
+            }
+            register(server, DOMAIN + ":type=Size,name=contourPoints", contourPoints);
+            register(server, DOMAIN + ":type=Size,name=scannedRows", scannedRows);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register the pipeline metrics", e);
+        }
+    }
+
+    private static void register(MBeanServer server, String name, Object mbean) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        if (!server.isRegistered(objectName)) {
+            server.registerMBean(mbean, objectName);
+        }
+    }
+
+    /**
+     * @return all metrics as text, latencies in milliseconds
+     */
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-20s %10s %12s %12s %12s %12s %12s%n",
+                "metric", "count", "mean", "p50", "p90", "p99", "max"));
+        for (int i = 0; i < stages.length; i++) {
+            appendText(sb, STAGE_NAMES[i] + " [ms]", stages[i], 1e-6);
+        }
+        appendText(sb, "contourPoints", contourPoints, 1);
+        appendText(sb, "scannedRows", scannedRows, 1);
+        sb.append(String.format(Locale.US, "images %d, rejected: empty contour %d, aspect ratio %d%n",
+                images.get(), rejectedEmptyContour.get(), rejectedAspectRatio.get()));
+        return sb.toString();
+    }
+
+    private static void appendText(StringBuilder sb, String name, Histogram histogram, double scale) {
+        sb.append(String.format(Locale.US, "%-20s %10d %12.3f %12.3f %12.3f %12.3f %12.3f%n", name,
+                histogram.getCount(), histogram.getMean() * scale, histogram.getPercentile50() * scale,
+                histogram.getPercentile90() * scale, histogram.getPercentile99() * scale, histogram.getMax() * scale));
+    }
+
+    /**
+     * All metrics as csv rows with the time in front, latencies in milliseconds,
+     * counters have their value in the count column
+     *
+     * @param time time of the dump
+     * @return csv rows
+     */
+    public String dumpCsv(String time) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < stages.length; i++) {
+            appendCsv(sb, time, STAGE_NAMES[i] + "Millis", stages[i], 1e-6);
+        }
+        appendCsv(sb, time, "contourPoints", contourPoints, 1);
+        appendCsv(sb, time, "scannedRows", scannedRows, 1);
+        sb.append(time).append(",images,").append(images.get()).append(",,,,,\n");
+        sb.append(time).append(",rejectedEmptyContour,").append(rejectedEmptyContour.get()).append(",,,,,\n");
+        sb.append(time).append(",rejectedAspectRatio,").append(rejectedAspectRatio.get()).append(",,,,,\n");
+        return sb.toString();
+    }
+
+    private static void appendCsv(StringBuilder sb, String time, String name, Histogram histogram, double scale) {
+        sb.append(String.format(Locale.US, "%s,%s,%d,%.6f,%.6f,%.6f,%.6f,%.6f%n", time, name,
+                histogram.getCount(), histogram.getMean() * scale, histogram.getPercentile50() * scale,
+                histogram.getPercentile90() * scale, histogram.getPercentile99() * scale, histogram.getMax() * scale));
+    }
+
+    /**
+     * Dumps the metrics periodically from a daemon thread, a running dump is replaced
+     *
+     * @param filePath      file the dumps are appended to, "-" for the console,
+     *                      csv if the path ends with .csv
+     * @param periodSeconds seconds between two dumps
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized void startDump(String filePath, long periodSeconds) throws IOException {
+        stopDump();
+        final boolean csv = filePath.endsWith(".csv");
+        boolean empty = !new File(filePath).exists() || new File(filePath).length() == 0;
+        final PrintStream out = "-".equals(filePath) ? System.out
+                : new PrintStream(new FileOutputStream(filePath, true), true, "UTF-8");
+        if (csv && empty) {
+            out.println("time,metric,count,mean,p50,p90,p99,max");
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pipeline-metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                String time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US).format(new Date());
+                if (csv) {
+                    out.print(dumpCsv(time));
+                } else {
+                    out.print(time + "\n" + dump());
+                }
+                out.flush();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Enables the metrics, registers the MBeans and starts the dump
+     * as the system properties leaf.metrics, leaf.metrics.dump and leaf.metrics.period say
+     *
+     * @throws IOException if the dump file cannot be opened
+     */
+    public static void configure() throws IOException {
+        if (!Boolean.getBoolean("leaf.metrics")) {
+            return;
+        }
+        INSTANCE.setEnabled(true);
+        INSTANCE.register();
+        String dumpPath = System.getProperty("leaf.metrics.dump");
+        if (dumpPath != null) {
+            INSTANCE.startDump(dumpPath, Long.getLong("leaf.metrics.period", DEFAULT_DUMP_PERIOD));
+        }
+    }
+}
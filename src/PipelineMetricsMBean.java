@@ -0,0 +1,22 @@
+/**
+ * PipelineMetricsMBean This interface exposes the pipeline switch and
+ * counters through JMX, the stages and sizes are Histogram MBeans
+ *
+ * @author Karina Becker
+ */
+
+public interface PipelineMetricsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getImages();
+
+    long getRejectedEmptyContour();
+
+    long getRejectedAspectRatio();
+
+    String dump();
+
+    void reset();
+}
@@ -1,181 +1,158 @@
 /**
  * PlantRec_ This is the main class for the plant leaf recognition plugin for ImageJ.
- * It does pre-configuration of RGB input image and
- * extracts contour for EFD with help of Particle Analyser.
+ * It runs the headless LeafPipeline on the input image and
+ * shows the mask, results and EFD outline when a display is available.
  *
  * @author Karina Becker
  */
 
-import fiji.threshold.Auto_Local_Threshold;
 import ij.*;
+import ij.gui.PolygonRoi;
 import ij.gui.Roi;
-import ij.measure.Measurements;
 import ij.measure.ResultsTable;
-import ij.process.*;
-import ij.plugin.filter.ParticleAnalyzer;
-import ij.plugin.frame.RoiManager;
 
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
 import java.awt.Polygon;
-import java.awt.image.BufferedImage;
-import java.io.FileWriter;
 import java.io.IOException;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 
 public class PlantRec_ {
-    private ImagePlus imp;
-    private ResultsTable rt;
+    private static final String DEFAULT_IMAGE = "file/leaf.JPG";
+    private static final int DEFAULT_CONTOUR_POINTS = LeafPipeline.DEFAULT_CONTOUR_POINTS;
+    private static final String DEFAULT_CACHE = "file/features.cache";
+    private static final int DEFAULT_K = 5;
+    private static LeafDatabase database; // loaded once, shared by all instances
+    private static FeatureCache cache;  // features of processed images, shared by all instances
 
     /**
      * Main class starts PlantRec_ constructor
+     * optional arguments: image path, number of contour points for EFD and k
      */
     public static void main(String[] args) {
-        new PlantRec_();
+        String filePath = args.length > 0 ? args[0] : DEFAULT_IMAGE;
+        int contourPoints = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONTOUR_POINTS;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_K;
+        new PlantRec_(filePath, contourPoints, k);
     }
 
     /**
      * Constructor for new PlantRec_ ImageJ plugin
      */
     public PlantRec_() {
-        String filePath = "file/leaf.JPG";
-        System.out.println("Fielpath: " + filePath);
-        IJ.open(filePath);
-        imp = WindowManager.getCurrentImage();  // Open image
-
-        double[] huMoments = getHuMoments();    // Get array with Hu moments
-        preparation();                          // Turn image to binary
-        Polygon polygon = findLargestArea();    // Find polygon for largest area
-        double[] efd = getEFD(polygon);         // Get array with EFDs
-        new KNNPlant(efd, huMoments, 5);        // Put data into comparator with number of k nearest neighbours
-        //writeToDatabase(efd, huMoments);		// Write to database
+        this(DEFAULT_IMAGE, DEFAULT_CONTOUR_POINTS);
     }
 
     /**
-     * Preparation of input image,
-     * Get image, set up processors, turn to binary image with clear outline
+     * Constructor for new PlantRec_ ImageJ plugin with the 5 closest matches
+     *
+     * @param filePath      path of the input image
+     * @param contourPoints number of contour points for EFD, 0 uses all polygon vertices
      */
-    private void preparation() {
-
-        ImageConverter ic = new ImageConverter(imp);
-        Auto_Local_Threshold autoLocThres = new Auto_Local_Threshold();
-
-        //Preparation of image
-        ic.convertToGray8();                            //Grayscale
-        IJ.run(imp, "Gaussian Blur...", "sigma=1.5");    //Blurring
-        autoLocThres.exec(imp, "Bernsen", 7, 0, 0, true); //Thresholding with Bernsen
-        IJ.run("Convert to Mask");                        //Converting to mask
-        IJ.run(imp, "Dilate", "");                        //Dilation (adding on top)
-        IJ.run(imp, "Close-", "");                        //Closing operation (join narrow isthumes)
-        IJ.run(imp, "Fill Holes", "");                    //Fill holes
+    public PlantRec_(String filePath, int contourPoints) {
+        this(filePath, contourPoints, DEFAULT_K);
     }
 
-
     /**
-     * Find largest contour to create polygon from it
-     * finds contours with ParticleAnalyzer and gets results table.
-     * gets largest contour and then polygon of it.
+     * Constructor for new PlantRec_ ImageJ plugin,
+     * runs the headless LeafPipeline and shows its results if a display is available
      *
-     * @return polygon to get outline contour from
+     * @param filePath      path of the input image
+     * @param contourPoints number of contour points for EFD, 0 uses all polygon vertices
+     * @param k             number of closest matches to consider, see KNNEvaluation for tuning it
      */
-    private Polygon findLargestArea() {
-        //Find contours with Particle Analyser and get results table
-        rt = ResultsTable.getResultsTable();
-        if (rt == null) {
-            rt = new ResultsTable();
-        }
-        RoiManager manager = RoiManager.getInstance();
-        if (manager == null) {
-            manager = new RoiManager();
-        }
-        ParticleAnalyzer analyser = new ParticleAnalyzer(
-                ParticleAnalyzer.ADD_TO_MANAGER //add to RoiManager
-                        + ParticleAnalyzer.SHOW_OUTLINES + ParticleAnalyzer.IN_SITU_SHOW, //show outlines and replace original image
-                Measurements.AREA + Measurements.SHAPE_DESCRIPTORS, //get area and shape descriptors
-                rt, 20000, Double.MAX_VALUE, 0, 1);
-        analyser.analyze(imp);
-        rt.updateResults();
-        rt.show("Results");
-        imp.show();
-
-        //Loop through indices of individual areas to find largest area
-        Roi[] contour = manager.getRoisAsArray();
-        double largest_area = 0;
-        int largest_area_index = 0;
-        if (contour.length > 0) {
-            for (int i = 0; i < contour.length; i++) {
-                double a = rt.getValue("Area", i);
-                if (a > largest_area) {
-                    largest_area = a;
-                    largest_area_index = i;
+    public PlantRec_(String filePath, int contourPoints, int k) {
+        System.out.println("Fielpath: " + filePath);
+        LeafPipeline pipeline = new LeafPipeline();
+        pipeline.setContourPoints(contourPoints);
+        try {
+            LeafFeatures features;
+            if (GraphicsEnvironment.isHeadless()) {
+                //nothing to show, an image processed before skips straight to the classifier
+                pipeline.setCache(getCache());
+                features = pipeline.extract(filePath);
+                if (features == null) {
+                    return;
                 }
+            } else {
+                ImagePlus imp = pipeline.open(filePath);        // Open image
+                features = pipeline.extract(imp);               // Hu moments, binary mask, largest area and EFDs
+                if (features == null) {
+                    return;
+                }
+                show(imp, features, pipeline.createEFD(features.contour));
             }
-            //Test if image quality sufficient/ correct shape detected
-            if (rt.getValue("AR", largest_area_index) > 3.0) {
-                System.err.println("Please try again with another image. Leaf could not be detected.");
-            }
-        } else {
-            System.err.println("Error. Empty contour array");
+            getClassifier().classify(features.efd, features.hu, k).print(); // Put data into comparator with number of k nearest neighbours
+            //writeToDatabase(features, "9");		// Write to database
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-
-        //Get polygon of largest shape
-        Polygon polygon = contour[largest_area_index].getPolygon();
-        return polygon;
     }
 
-
     /**
-     * get EFDs
-     * draw outline of it in new JFrame
+     * Get the shared classifier, the database is read on first use only
      *
-     * @param polygon to get outline contour from
-     * @return efd double array of EFDs
+     * @return classifier over the current database snapshot
+     * @throws IOException if the database cannot be read
      */
-    private double[] getEFD(Polygon polygon) {
-        //Get outline points from polygon
-        int[] xInt = polygon.xpoints;
-        int[] yInt = polygon.ypoints;
+    private static KNNPlant getClassifier() throws IOException {
+        return getDatabase().getClassifier();
+    }
 
-        //Change to double
-        double[] xDouble = new double[xInt.length];
-        for (int i = 0; i < xDouble.length; ++i) {
-            xDouble[i] = (double) xInt[i];
+    private static synchronized LeafDatabase getDatabase() throws IOException {
+        if (database == null) {
+            database = new LeafDatabase(KNNPlant.DEFAULT_DATABASE);
         }
+        return database;
+    }
 
-        double[] yDouble = new double[yInt.length];
-        for (int i = 0; i < yDouble.length; ++i) {
-            yDouble[i] = (double) yInt[i];
+    /**
+     * Get the shared feature cache, the cache file is read on first use only
+     *
+     * @return feature cache backed by the cache file
+     * @throws IOException if the cache file cannot be read
+     */
+    private static synchronized FeatureCache getCache() throws IOException {
+        if (cache == null) {
+            cache = new FeatureCache(DEFAULT_CACHE, FeatureCache.DEFAULT_MAX_ENTRIES);
         }
+        return cache;
+    }
 
-        //Elliptic Fourier transform
-        EFD efdFunct = new EFD(xDouble, yDouble, 30);
-        double[] efd = efdFunct.getEfdNormalised();
+    /**
+     * Optional visualization: binary mask with the leaf outline,
+     * results table and EFD outline in a new JFrame
+     *
+     * @param imp      binary mask
+     * @param features extracted features
+     * @param efd      EFD of the outline
+     */
+    private void show(ImagePlus imp, LeafFeatures features, EFD efd) {
+        imp.setRoi(new PolygonRoi(features.contour, Roi.POLYGON));
+        imp.show();
+
+        ResultsTable rt = new ResultsTable();
+        rt.incrementCounter();
+        rt.addValue("Area", features.area);
+        rt.addValue("Circ.", features.circularity);
+        rt.addValue("AR", features.aspectRatio);
+        rt.addValue("Round", features.roundness);
+        rt.addValue("Solidity", features.solidity);
+        rt.show("Results");
 
         //Display EFD outline in a new JFrame
-        int[][] polygonDraw = efdFunct.createPolygonInt();
+        int[][] polygonDraw = efd.createPolygonInt();
+        int[] xInt = new int[polygonDraw.length];
+        int[] yInt = new int[polygonDraw.length];
         for (int i = 0; i < polygonDraw.length; ++i) {
             xInt[i] = polygonDraw[i][0];
             yInt[i] = polygonDraw[i][1];
         }
         drawPolygon(xInt, yInt);
-
-        return efd;
-    }
-
-    /**
-     * call ImageMoments class, get Hu moments
-     *
-     * @return huMoments double array with the seven Hu moments
-     */
-    private double[] getHuMoments() {
-        BufferedImage bufImg = imp.getBufferedImage();
-        ImageMoments imgMoments = new ImageMoments(bufImg);
-        double[] huMoments = imgMoments.getAllMoments();
-
-        return huMoments;
     }
 
     /**
@@ -214,52 +191,18 @@ public class PlantRec_ {
     }
 
     /**
-     * Write to database
+     * Write to database, the leaf is numbered after the last sample of its species
+     * and classifications that start afterwards see it
      *
-     * @param efd
-     * @param huMoments
+     * @param features extracted features of the leaf
+     * @param species  species label of the leaf
      */
-    private void writeToDatabase(double[] efd, double[] huMoments) {
-        int largest_area_index = 0; //Get real index for use
-        String COMMA_DELIMITER = ",";
-        FileWriter fileWriter = null;
+    private void writeToDatabase(LeafFeatures features, String species) {
         try {
-            fileWriter = new FileWriter("file/data.csv", true);
-
-            fileWriter.append("9");
-            fileWriter.append(COMMA_DELIMITER);
-            fileWriter.append("1");
-            fileWriter.append(COMMA_DELIMITER);
-            fileWriter.append(String.valueOf(rt.getValue("Area", largest_area_index)));
-            fileWriter.append(COMMA_DELIMITER);
-            fileWriter.append(String.valueOf(rt.getValue("Circ.", largest_area_index)));
-            fileWriter.append(COMMA_DELIMITER);
-            fileWriter.append(String.valueOf(rt.getValue("Round", largest_area_index)));
-            fileWriter.append(COMMA_DELIMITER);
-            fileWriter.append(String.valueOf(rt.getValue("Solidity", largest_area_index)));
-            fileWriter.append(COMMA_DELIMITER);
-            for (double value : efd) {
-                fileWriter.append(String.valueOf(value));
-                fileWriter.append(COMMA_DELIMITER);
-            }
-            for (double value : huMoments) {
-                fileWriter.append(String.valueOf(value));
-                fileWriter.append(COMMA_DELIMITER);
-            }
-            fileWriter.append("\n");
-
-        } catch (Exception e) {
+            getDatabase().add(features, species);
+        } catch (IOException e) {
             System.out.println("Error in CsvFileWriter !!!");
             e.printStackTrace();
-
-        } finally {
-            try {
-                fileWriter.flush();
-                fileWriter.close();
-            } catch (IOException e) {
-                System.out.println("Error while flushing/closing fileWriter !!!");
-                e.printStackTrace();
-            }
         }
     }
-}
\ No newline at end of file
+}
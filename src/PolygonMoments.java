@@ -0,0 +1,87 @@
+/**
+ * PolygonMoments This class computes the Hu moments of a binary leaf shape
+ * from its traced outline instead of its pixels
+ * <p>
+ * By Green's theorem an integral over the area of a polygon is a sum over
+ * its edges, so the moments up to order 3 cost one pass over the vertices,
+ * O(perimeter) instead of O(width x height). A traced outline runs along the
+ * pixel edges and encloses exactly the pixels of the particle; pixel sums
+ * treat every pixel as a point at its centre, the integrals spread it over its
+ * unit square. The integrals are corrected by the closed form difference, so
+ * the moments are the ones ImageMoments reads from a mask with only the
+ * particle set (value 1 per pixel), up to rounding. The Hu moments are
+ * derived by MomentAccumulator like those of ImageMoments.
+ *
+ * @author Karina Becker
+ */
+
+import java.awt.Polygon;
+
+public class PolygonMoments {
+    private final Polygon polygon;
+    private double[] moments;
+
+    /**
+     * @param polygon traced outline of a particle, vertices on pixel corners,
+     *                a pixel (x, y) covers the square from (x, y) to (x + 1, y + 1)
+     */
+    PolygonMoments(Polygon polygon) {
+        this.polygon = polygon;
+    }
+
+    private void calculateMoments() {
+        int n = polygon.npoints;
+        int[] xs = polygon.xpoints;
+        int[] ys = polygon.ypoints;
+
+        //vertices relative to the centre of the bounding box keep the sums small
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double originX = (minX + maxX) / 2.0;
+        double originY = (minY + maxY) / 2.0;
+
+        //area integrals of 1, x, y, x^2, xy, y^2, x^3, x^2 y, x y^2, y^3 as edge sums
+        double a = 0, sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0, sxxx = 0, sxxy = 0, sxyy = 0, syyy = 0;
+        for (int i = 0, previous = n - 1; i < n; previous = i++) {
+            double x0 = xs[previous] - originX, y0 = ys[previous] - originY;
+            double x1 = xs[i] - originX, y1 = ys[i] - originY;
+            double cross = x0 * y1 - x1 * y0;
+            a += cross;
+            sx += (x0 + x1) * cross;
+            sy += (y0 + y1) * cross;
+            sxx += (x0 * x0 + x0 * x1 + x1 * x1) * cross;
+            syy += (y0 * y0 + y0 * y1 + y1 * y1) * cross;
+            sxy += (x0 * y1 + 2 * x0 * y0 + 2 * x1 * y1 + x1 * y0) * cross;
+            sxxx += (x0 * x0 * x0 + x0 * x0 * x1 + x0 * x1 * x1 + x1 * x1 * x1) * cross;
+            syyy += (y0 * y0 * y0 + y0 * y0 * y1 + y0 * y1 * y1 + y1 * y1 * y1) * cross;
+            sxxy += (x0 * x0 * (3 * y0 + y1) + 2 * x0 * x1 * (y0 + y1) + x1 * x1 * (y0 + 3 * y1)) * cross;
+            sxyy += (y0 * y0 * (3 * x0 + x1) + 2 * y0 * y1 * (x0 + x1) + y1 * y1 * (x0 + 3 * x1)) * cross;
+        }
+        //the sign of the area is the orientation of the outline
+        double sign = a < 0 ? -1 : 1;
+        double area = sign * a / 2;
+        double ix = sign * sx / 6, iy = sign * sy / 6;
+        double ixx = sign * sxx / 12, iyy = sign * syy / 12, ixy = sign * sxy / 24;
+        double ixxx = sign * sxxx / 20, iyyy = sign * syyy / 20;
+        double ixxy = sign * sxxy / 60, ixyy = sign * sxyy / 60;
+
+        //pixel centres instead of unit squares: the square of a centre c adds 1/12 to c^2 and c/4 to c^3,
+        //the first index is the row (y) and the second the column (x) as in ImageMoments
+        MomentAccumulator accumulator = new MomentAccumulator();
+        accumulator.add(area, iy, ix, iyy - area / 12, ixy, ixx - area / 12,
+                iyyy - iy / 4, ixyy - ix / 12, ixxy - iy / 12, ixxx - ix / 4);
+        moments = accumulator.getHuMoments();
+    }
+
+    public double[] getAllMoments() {
+        if (moments == null) {
+            calculateMoments();
+        }
+        return moments;
+    }
+}
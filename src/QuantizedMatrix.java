@@ -0,0 +1,309 @@
+/**
+ * QuantizedMatrix This class keeps the descriptors of the reference database
+ * standardised and packed for fast scans: EFDs and Hu moments of a leaf form
+ * one row, every column is z-score standardised (mean 0, standard deviation 1)
+ * so no factor between EFDs and Hu moments is needed
+ * <p>
+ * The rows are stored in one contiguous array of floats (4 bytes per value)
+ * or of bytes (1 byte per value, quantized to -127..127 with its own step per
+ * column, the largest standardised value of the column divided by 127, so a
+ * column with a narrow range keeps its resolution), 2 or 8 times less than
+ * the doubles the scan reads otherwise. The int8 scan does not quantize the
+ * query: per query it fills a table with the squared difference of every
+ * column and code to the query, and a row costs one table lookup per column.
+ * A search scans the packed rows for the closest candidates by approximate
+ * Euclidean distance and re-ranks them exactly in double precision from the
+ * original descriptors, which are read in place from the feature store, so
+ * only the packed rows are held in memory and quantization errors only
+ * matter if a true neighbour falls out of the candidates.
+ *
+ * @author Karina Becker
+ */
+
+import java.nio.DoubleBuffer;
+
+public class QuantizedMatrix {
+    public static final int FLOAT32 = 0;
+    public static final int INT8 = 1;
+    private static final int RERANK_FACTOR = 4;     // candidates per requested neighbour
+    private static final int MIN_CANDIDATES = 32;
+    private static final int CHECK_BLOCK = 8;       // columns between two checks against the worst candidate
+    private static final int CODES = 255;           // INT8 codes -127..127
+
+    private final DoubleBuffer efdDatabase; // original descriptors for the exact re-ranking
+    private final DoubleBuffer huDatabase;
+    private final int efdLength;
+    private final int huLength;
+    private final int rows;
+    private final int columns;
+    private final int precision;
+    private final double[] mean;         // per column
+    private final double[] inverseDeviation;
+    private final float[] values;        // FLOAT32: standardised rows
+    private final byte[] codes;          // INT8: quantized standardised rows
+    private final double[] step;         // INT8: quantization step per column
+
+    /**
+     * Standardises and packs the descriptors, the buffers are kept for re-ranking and must not change
+     *
+     * @param efdDatabase row-major EFDs
+     * @param efdLength   EFDs per row
+     * @param huDatabase  row-major Hu moments
+     * @param huLength    Hu moments per row
+     * @param rows        number of rows
+     * @param precision   FLOAT32 or INT8
+     */
+    public QuantizedMatrix(DoubleBuffer efdDatabase, int efdLength, DoubleBuffer huDatabase, int huLength, int rows,
+                           int precision) {
+        if (precision != FLOAT32 && precision != INT8) {
+            throw new IllegalArgumentException("Precision must be FLOAT32 or INT8");
+        }
+        this.efdDatabase = efdDatabase;
+        this.huDatabase = huDatabase;
+        this.efdLength = efdLength;
+        this.huLength = huLength;
+        this.rows = rows;
+        this.columns = efdLength + huLength;
+        this.precision = precision;
+
+        double[][] statistics = statistics(efdDatabase, efdLength, huDatabase, huLength, rows);
+        mean = statistics[0];
+        inverseDeviation = statistics[1];
+        double[] row = new double[columns];
+
+        if (precision == FLOAT32) {
+            values = new float[rows * columns];
+            codes = null;
+            step = null;
+            for (int r = 0; r < rows; r++) {
+                readRow(r, row);
+                for (int c = 0; c < columns; c++) {
+                    values[r * columns + c] = (float) ((row[c] - mean[c]) * inverseDeviation[c]);
+                }
+            }
+        } else {
+            values = null;
+            codes = new byte[rows * columns];
+            double[] maxAbs = new double[columns];
+            for (int r = 0; r < rows; r++) {
+                readRow(r, row);
+                for (int c = 0; c < columns; c++) {
+                    maxAbs[c] = Math.max(maxAbs[c], Math.abs((row[c] - mean[c]) * inverseDeviation[c]));
+                }
+            }
+            step = new double[columns];
+            for (int c = 0; c < columns; c++) {
+                step[c] = maxAbs[c] > 0 ? maxAbs[c] / 127 : 1;
+            }
+            for (int r = 0; r < rows; r++) {
+                readRow(r, row);
+                for (int c = 0; c < columns; c++) {
+                    codes[r * columns + c] = (byte) Math.max(-127, Math.min(127,
+                            Math.round((row[c] - mean[c]) * inverseDeviation[c] / step[c])));
+                }
+            }
+        }
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return bytes of the packed rows
+     */
+    public long getPackedBytes() {
+        return precision == FLOAT32 ? 4L * values.length : codes.length;
+    }
+
+    /**
+     * Finds the k closest rows by the Euclidean distance of the standardised descriptors
+     *
+     * @param efdUser EFDs of the input leaf, at least efdLength
+     * @param huUser  Hu moments of the input leaf, at least huLength
+     * @param k       number of closest rows
+     * @return k closest rows with their exact distances
+     */
+    public TopK search(double[] efdUser, double[] huUser, int k) {
+        double[] query = new double[columns];
+        for (int c = 0; c < efdLength; c++) {
+            query[c] = (efdUser[c] - mean[c]) * inverseDeviation[c];
+        }
+        for (int c = 0; c < huLength; c++) {
+            query[efdLength + c] = (huUser[c] - mean[efdLength + c]) * inverseDeviation[efdLength + c];
+        }
+        int count = Math.min(rows, Math.max(k * RERANK_FACTOR, MIN_CANDIDATES));
+        TopK candidates = new TopK(count);
+        if (precision == FLOAT32) {
+            float[] floatQuery = new float[columns];
+            for (int c = 0; c < columns; c++) {
+                floatQuery[c] = (float) query[c];
+            }
+            scanFloat(floatQuery, candidates);
+        } else {
+            //squared difference of every code of a column to the query
+            float[] table = new float[columns * CODES];
+            for (int c = 0; c < columns; c++) {
+                for (int code = -127; code <= 127; code++) {
+                    double d = code * step[c] - query[c];
+                    table[c * CODES + code + 127] = (float) (d * d);
+                }
+            }
+            scanInt8(table, candidates);
+        }
+
+        //exact re-ranking of the candidates
+        double[] candidateDistances = new double[candidates.size()];
+        int[] candidateRows = new int[candidates.size()];
+        candidates.sorted(candidateDistances, candidateRows);
+        TopK nearest = new TopK(k);
+        double[] row = new double[columns];
+        for (int candidate : candidateRows) {
+            readRow(candidate, row);
+            double dist = 0.0;
+            for (int c = 0; c < columns; c++) {
+                double d = (row[c] - mean[c]) * inverseDeviation[c] - query[c];
+                dist += d * d;
+            }
+            nearest.offer(Math.sqrt(dist), candidate);
+        }
+        return nearest;
+    }
+
+    /**
+     * Offers rows that are not in the matrix, e.g. leaves added to the database after it was built,
+     * with their exact distances in the standardisation of the matrix
+     *
+     * @param efdUser  EFDs of the input leaf, at least efdLength
+     * @param huUser   Hu moments of the input leaf, at least huLength
+     * @param efdRows  row-major EFDs of the other rows
+     * @param huRows   row-major Hu moments of the other rows
+     * @param count    number of other rows
+     * @param firstRow row number of the first other row
+     * @param nearest  closest rows found so far, e.g. by search()
+     */
+    public void offerExact(double[] efdUser, double[] huUser, DoubleBuffer efdRows, DoubleBuffer huRows, int count,
+                           int firstRow, TopK nearest) {
+        offerExact(mean, inverseDeviation, efdLength, huLength, efdUser, huUser, efdRows, huRows, count, firstRow,
+                nearest);
+    }
+
+    /**
+     * Squared distances to the float rows, a row is left as soon as its partial
+     * distance after a block of columns reaches the worst candidate
+     */
+    private void scanFloat(float[] query, TopK candidates) {
+        for (int r = 0, offset = 0; r < rows; r++, offset += columns) {
+            float worst = (float) candidates.worstDistance();
+            float dist = 0f;
+            for (int block = 0; block < columns && dist < worst; block += CHECK_BLOCK) {
+                int end = Math.min(block + CHECK_BLOCK, columns);
+                for (int c = block; c < end; c++) {
+                    float d = values[offset + c] - query[c];
+                    dist += d * d;
+                }
+            }
+            if (dist < worst) {
+                candidates.offer(dist, r);
+            }
+        }
+    }
+
+    /**
+     * Squared distances to the int8 rows from the table of the query, a row is left as soon
+     * as its partial distance after a block of columns reaches the worst candidate
+     */
+    private void scanInt8(float[] table, TopK candidates) {
+        for (int r = 0, offset = 0; r < rows; r++, offset += columns) {
+            float worst = (float) candidates.worstDistance();
+            float dist = 0f;
+            for (int block = 0; block < columns && dist < worst; block += CHECK_BLOCK) {
+                int end = Math.min(block + CHECK_BLOCK, columns);
+                for (int c = block; c < end; c++) {
+                    dist += table[c * CODES + codes[offset + c] + 127];
+                }
+            }
+            if (dist < worst) {
+                candidates.offer(dist, r);
+            }
+        }
+    }
+
+    private void readRow(int r, double[] row) {
+        readRow(efdDatabase, efdLength, huDatabase, huLength, r, row);
+    }
+
+    /**
+     * EFDs followed by the Hu moments of one database row
+     */
+    static void readRow(DoubleBuffer efdDatabase, int efdLength, DoubleBuffer huDatabase, int huLength, int r,
+                        double[] row) {
+        //absolute gets leave the shared buffers untouched
+        for (int c = 0, offset = r * efdLength; c < efdLength; c++) {
+            row[c] = efdDatabase.get(offset + c);
+        }
+        for (int c = 0, offset = r * huLength; c < huLength; c++) {
+            row[efdLength + c] = huDatabase.get(offset + c);
+        }
+    }
+
+    /**
+     * Offers rows with their exact Euclidean distances to the standardised input leaf
+     */
+    static void offerExact(double[] mean, double[] inverseDeviation, int efdLength, int huLength,
+                           double[] efdUser, double[] huUser, DoubleBuffer efdRows, DoubleBuffer huRows, int count,
+                           int firstRow, TopK nearest) {
+        int columns = efdLength + huLength;
+        double[] query = new double[columns];
+        for (int c = 0; c < columns; c++) {
+            double value = c < efdLength ? efdUser[c] : huUser[c - efdLength];
+            query[c] = (value - mean[c]) * inverseDeviation[c];
+        }
+        double[] row = new double[columns];
+        for (int r = 0; r < count; r++) {
+            readRow(efdRows, efdLength, huRows, huLength, r, row);
+            double dist = 0.0;
+            for (int c = 0; c < columns; c++) {
+                double d = (row[c] - mean[c]) * inverseDeviation[c] - query[c];
+                dist += d * d;
+            }
+            nearest.offer(Math.sqrt(dist), firstRow + r);
+        }
+    }
+
+    /**
+     * Column statistics for the z-score standardisation of EFDs followed by Hu moments
+     *
+     * @return mean and inverse standard deviation per column, 0 for a constant column
+     */
+    static double[][] statistics(DoubleBuffer efdDatabase, int efdLength, DoubleBuffer huDatabase, int huLength,
+                                 int rows) {
+        int columns = efdLength + huLength;
+        double[] mean = new double[columns];
+        double[] inverseDeviation = new double[columns];
+        double[] row = new double[columns];
+        for (int r = 0; r < rows; r++) {
+            readRow(efdDatabase, efdLength, huDatabase, huLength, r, row);
+            for (int c = 0; c < columns; c++) {
+                mean[c] += row[c];
+            }
+        }
+        for (int c = 0; c < columns; c++) {
+            mean[c] /= Math.max(rows, 1);
+        }
+        double[] variance = new double[columns];
+        for (int r = 0; r < rows; r++) {
+            readRow(efdDatabase, efdLength, huDatabase, huLength, r, row);
+            for (int c = 0; c < columns; c++) {
+                double d = row[c] - mean[c];
+                variance[c] += d * d;
+            }
+        }
+        for (int c = 0; c < columns; c++) {
+            double deviation = Math.sqrt(variance[c] / Math.max(rows, 1));
+            //a constant column does not separate any leaves
+            inverseDeviation[c] = deviation > 0 ? 1 / deviation : 0;
+        }
+        return new double[][]{mean, inverseDeviation};
+    }
+}
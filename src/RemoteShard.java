@@ -0,0 +1,112 @@
+/**
+ * RemoteShard This class reaches a ShardServer in another process
+ * <p>
+ * Connections are kept open and reused, a search takes an idle connection
+ * or opens a new one, so concurrent searches use one connection each. A
+ * connection that fails is closed and not reused.
+ *
+ * @author Karina Becker
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class RemoteShard implements Shard {
+    public static final int DEFAULT_TIMEOUT = 10000;  // milliseconds to connect and to wait for an answer
+
+    private final String host;
+    private final int port;
+    private final int timeoutMillis;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+    private static class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already closed
+            }
+        }
+    }
+
+    /**
+     * @param host          host of the shard server
+     * @param port          port of the shard server
+     * @param timeoutMillis milliseconds to connect and to wait for an answer
+     */
+    public RemoteShard(String host, int port, int timeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param address host:port of the shard server
+     * @return shard with the default timeout
+     */
+    public static RemoteShard parse(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port instead of " + address);
+        }
+        return new RemoteShard(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                DEFAULT_TIMEOUT);
+    }
+
+    @Override
+    public Neighbours search(double[] efdUser, double[] huUser, int k) throws IOException {
+        Connection connection = idle.poll();
+        if (connection == null) {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            connection = new Connection(socket);
+        }
+        try {
+            ShardServer.writeRequest(connection.out, efdUser, huUser, k);
+            connection.out.flush();
+            Neighbours neighbours = ShardServer.readNeighbours(connection.in);
+            idle.offer(connection);
+            return neighbours;
+        } catch (IOException e) {
+            connection.close();
+            throw new IOException("Shard " + this + ": " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            //the answer was read completely, the connection can be reused
+            idle.offer(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the idle connections
+     */
+    public void close() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
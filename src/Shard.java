@@ -0,0 +1,45 @@
+/**
+ * Shard This interface is one partition of the reference database that
+ * answers the local k nearest neighbours of a query for a ShardCoordinator
+ * <p>
+ * A KNNPlant is a shard in the same process, a RemoteShard reaches a
+ * ShardServer in another process over a socket.
+ *
+ * @author Karina Becker
+ */
+
+import java.io.IOException;
+
+public interface Shard {
+
+    /**
+     * Finds the k closest rows of this shard by the combined distance of KNNPlant
+     *
+     * @param efdUser EFD double array derived from user input leaf
+     * @param huUser  double array with huMoments
+     * @param k       number of closest matches
+     * @return local closest matches and the sums for Shepard's normalisation
+     * @throws IOException if the shard cannot be reached
+     */
+    Neighbours search(double[] efdUser, double[] huUser, int k) throws IOException;
+
+    //local result of one shard
+    class Neighbours {
+        public final int size;            // rows of the shard
+        public final double weightedSum;  // sum of w * d over all rows, w = 1 / d^2
+        public final double weight;       // sum of w over all rows
+        public final String[] species;    // species of the closest rows, closest first
+        public final double[] distances;  // combined distances of the closest rows
+        public final int[] rows;          // closest rows within the shard
+
+        public Neighbours(int size, double weightedSum, double weight, String[] species, double[] distances,
+                          int[] rows) {
+            this.size = size;
+            this.weightedSum = weightedSum;
+            this.weight = weight;
+            this.species = species;
+            this.distances = distances;
+            this.rows = rows;
+        }
+    }
+}
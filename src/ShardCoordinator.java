@@ -0,0 +1,180 @@
+/**
+ * ShardCoordinator This class classifies leaves over a reference database
+ * that is partitioned into shards, in this process or in other processes
+ * <p>
+ * A query is sent to all shards at the same time (scatter), every shard
+ * answers its local k closest rows and its sums of Shepard's weights. The
+ * coordinator merges the local lists into the global k closest rows (gather),
+ * adds up the sums for the normalisation and takes the majority vote of
+ * KNNPlant. Shards are merged in their order with rows in their order, so
+ * for contiguous partitions (KNNPlant.partition()) the classification is
+ * the same as classify() over the whole database, ties included; the
+ * normalised distances can differ in the last digits since the sums are
+ * added up in another order. A query fails if any shard fails.
+ *
+ * @author Karina Becker
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class ShardCoordinator {
+    private final List<Shard> shards;
+    private final ExecutorService scatter;
+
+    /**
+     * @param shards shards in the order of their rows
+     */
+    public ShardCoordinator(List<? extends Shard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Expected at least one shard");
+        }
+        this.shards = new ArrayList<Shard>(shards);
+        scatter = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shard-scatter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Finds the nearest neighbours of an input leaf on all shards
+     * and gets majority vote to determinate species
+     *
+     * @param efdUser EFD double array derived from user input leaf
+     * @param huUser  double array with huMoments
+     * @param k       number of closest matches to consider
+     * @return classification with the k closest matches and the majority class
+     * @throws IOException if a shard cannot be reached
+     */
+    public KNNPlant.Classification classify(final double[] efdUser, final double[] huUser, final int k)
+            throws IOException {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        long start = PipelineMetrics.start();
+
+        //the first shard is searched by the calling thread while the others run
+        List<Future<Shard.Neighbours>> futures = new ArrayList<Future<Shard.Neighbours>>(shards.size() - 1);
+        for (final Shard shard : shards.subList(1, shards.size())) {
+            futures.add(scatter.submit(new Callable<Shard.Neighbours>() {
+                @Override
+                public Shard.Neighbours call() throws IOException {
+                    return shard.search(efdUser, huUser, k);
+                }
+            }));
+        }
+        Shard.Neighbours[] answers = new Shard.Neighbours[shards.size()];
+        try {
+            answers[0] = shards.get(0).search(efdUser, huUser, k);
+            for (int i = 1; i < answers.length; i++) {
+                answers[i] = futures.get(i - 1).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<Shard.Neighbours> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        KNNPlant.Classification classification = merge(answers, k);
+        PipelineMetrics.stop(PipelineMetrics.CLASSIFY, start);
+        return classification;
+    }
+
+    /**
+     * Global k closest rows of the local lists, the merged entries are numbered
+     * shard by shard so equal distances keep the order of the whole database
+     */
+    static KNNPlant.Classification merge(Shard.Neighbours[] answers, int k) {
+        int entries = 0;
+        double weightedSum = 0.0, weight = 0.0;
+        for (Shard.Neighbours answer : answers) {
+            entries += answer.rows.length;
+            weightedSum += answer.weightedSum;
+            weight += answer.weight;
+        }
+        TopK nearest = new TopK(Math.min(k, entries));
+        String[] entrySpecies = new String[entries];
+        for (int a = 0, entry = 0; a < answers.length; a++) {
+            for (int i = 0; i < answers[a].rows.length; i++, entry++) {
+                entrySpecies[entry] = answers[a].species[i];
+                nearest.offer(answers[a].distances[i], entry);
+            }
+        }
+        double[] distances = new double[nearest.size()];
+        int[] selected = new int[nearest.size()];
+        nearest.sorted(distances, selected);
+        String[] species = new String[selected.length];
+        for (int i = 0; i < selected.length; i++) {
+            species[i] = entrySpecies[selected[i]];
+        }
+
+        String majorityClass = KNNPlant.vote(species, distances);
+        double scale = 1 / KNNPlant.calculateShepardsDistance(weightedSum, weight);
+        double[] normalised = Arrays.copyOf(distances, distances.length);
+        for (int i = 0; i < normalised.length; i++) {
+            normalised[i] *= scale;
+        }
+        return new KNNPlant.Classification(species, normalised, majorityClass);
+    }
+
+    /**
+     * Stops the scatter threads, the shards are not closed
+     */
+    public void close() {
+        scatter.shutdownNow();
+    }
+
+    /**
+     * Classifies an image over shard servers
+     * arguments: image path, k and host:port of every shard server in the order of their partitions
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 3) {
+            System.out.println("Usage: ShardCoordinator image k host:port [host:port ...]");
+            return;
+        }
+        List<RemoteShard> shards = new ArrayList<RemoteShard>();
+        for (int i = 2; i < args.length; i++) {
+            shards.add(RemoteShard.parse(args[i]));
+        }
+        ShardCoordinator coordinator = new ShardCoordinator(shards);
+        try {
+            LeafFeatures features = new LeafPipeline().extract(args[0]);
+            if (features == null) {
+                System.out.println("No leaf found in " + args[0]);
+                return;
+            }
+            coordinator.classify(features.efd, features.hu, Integer.parseInt(args[1])).print();
+        } finally {
+            coordinator.close();
+            for (RemoteShard shard : shards) {
+                shard.close();
+            }
+        }
+    }
+}
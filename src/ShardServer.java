@@ -0,0 +1,243 @@
+/**
+ * ShardServer This class serves one shard of the reference database over a
+ * simple local socket protocol, so a ShardCoordinator can spread a database
+ * over several processes
+ * <p>
+ * A connection carries any number of requests, one after the other. All
+ * values are written with DataOutputStream (big-endian):
+ * request:  int MAGIC, int k, int n, n doubles EFDs, int m, m doubles Hu moments
+ * answer:   byte OK, int size, double weightedSum, double weight, int count,
+ * count times (UTF species, double distance, int row)
+ * or        byte BAD_REQUEST, UTF message
+ * Every connection has its own thread, the connection is closed at the end
+ * of its stream or on a malformed request.
+ *
+ * @author Karina Becker
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class ShardServer {
+    public static final int DEFAULT_PORT = 9090;
+    static final int MAGIC = 0x4c46534b;   // "LFSK"
+    static final byte OK = 0;
+    static final byte BAD_REQUEST = 1;
+    private static final int MAX_VALUES = 1 << 16;  // largest accepted descriptor array
+
+    private final Shard shard;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+
+    /**
+     * Constructor ShardServer binds the port on the loopback address, the server runs after start()
+     *
+     * @param port  local port, 0 picks a free one
+     * @param shard shard answered to all connections
+     * @throws IOException if the port cannot be bound
+     */
+    public ShardServer(int port, Shard shard) throws IOException {
+        this(port, InetAddress.getLoopbackAddress(), shard);
+    }
+
+    /**
+     * Constructor ShardServer binds the port, the server runs after start()
+     *
+     * @param port    local port, 0 picks a free one
+     * @param address local address, null for all addresses
+     * @param shard   shard answered to all connections
+     * @throws IOException if the port cannot be bound
+     */
+    public ShardServer(int port, InetAddress address, Shard shard) throws IOException {
+        this.shard = shard;
+        serverSocket = new ServerSocket(port, 0, address);
+        connections = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shard-connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Accepts connections in a new thread
+     */
+    public void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            System.err.println("Shard server: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "shard-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Closes the port and all connections
+     */
+    public void stop() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Answers the requests of one connection until its stream ends
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (magic != MAGIC) {
+                    throw new IOException("Not a shard request");
+                }
+                int k = in.readInt();
+                double[] efd = readValues(in);
+                double[] hu = readValues(in);
+                try {
+                    if (k < 1) {
+                        throw new IllegalArgumentException("k must be at least 1");
+                    }
+                    writeNeighbours(out, shard.search(efd, hu, k));
+                } catch (IllegalArgumentException e) {
+                    out.writeByte(BAD_REQUEST);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            //connection reset by the client
+        } catch (IOException e) {
+            System.err.println("Shard connection: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already closed
+            }
+        }
+    }
+
+    static void writeRequest(DataOutputStream out, double[] efd, double[] hu, int k) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(k);
+        writeValues(out, efd);
+        writeValues(out, hu);
+    }
+
+    static void writeNeighbours(DataOutputStream out, Shard.Neighbours neighbours) throws IOException {
+        out.writeByte(OK);
+        out.writeInt(neighbours.size);
+        out.writeDouble(neighbours.weightedSum);
+        out.writeDouble(neighbours.weight);
+        out.writeInt(neighbours.rows.length);
+        for (int i = 0; i < neighbours.rows.length; i++) {
+            out.writeUTF(neighbours.species[i]);
+            out.writeDouble(neighbours.distances[i]);
+            out.writeInt(neighbours.rows[i]);
+        }
+    }
+
+    /**
+     * Reads an answer, a rejected request is thrown as IllegalArgumentException
+     */
+    static Shard.Neighbours readNeighbours(DataInputStream in) throws IOException {
+        byte status = in.readByte();
+        if (status == BAD_REQUEST) {
+            throw new IllegalArgumentException(in.readUTF());
+        }
+        if (status != OK) {
+            throw new IOException("Unknown shard answer " + status);
+        }
+        int size = in.readInt();
+        double weightedSum = in.readDouble();
+        double weight = in.readDouble();
+        int count = in.readInt();
+        if (count < 0 || count > size) {
+            throw new IOException("Malformed shard answer");
+        }
+        String[] species = new String[count];
+        double[] distances = new double[count];
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            species[i] = in.readUTF();
+            distances[i] = in.readDouble();
+            rows[i] = in.readInt();
+        }
+        return new Shard.Neighbours(size, weightedSum, weight, species, distances, rows);
+    }
+
+    private static void writeValues(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static double[] readValues(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_VALUES) {
+            throw new IOException("Malformed shard request");
+        }
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Serves one contiguous partition of a database on the loopback address
+     * optional arguments: port, database path, partition index and number of partitions
+     */
+    public static void main(String[] args) throws IOException {
+        PipelineMetrics.configure();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String database = args.length > 1 ? args[1] : KNNPlant.DEFAULT_DATABASE;
+        int index = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int count = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        KNNPlant shard = new KNNPlant(database).partition(index, count);
+        ShardServer server = new ShardServer(port, shard);
+        server.start();
+        System.out.println("Shard " + index + "/" + count + " with " + shard.size()
+                + " leaves listening on port " + server.getPort());
+    }
+}
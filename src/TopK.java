@@ -0,0 +1,121 @@
+/**
+ * TopK This class keeps the k smallest distances seen so far in a bounded
+ * max-heap of primitive values, together with their database rows
+ * <p>
+ * Equal distances are ordered by row, so the selection is the same as the
+ * first k entries of a stable sort of all distances.
+ *
+ * @author Karina Becker
+ */
+
+public class TopK {
+    private final double[] distances;
+    private final int[] rows;
+    private int size;
+
+    /**
+     * @param k maximum number of entries kept
+     */
+    public TopK(int k) {
+        distances = new double[k];
+        rows = new int[k];
+    }
+
+    /**
+     * Removes all entries, the heap can be reused for the next query
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == distances.length;
+    }
+
+    /**
+     * @return largest distance kept, positive infinity while the heap is not full
+     */
+    public double worstDistance() {
+        return isFull() && size > 0 ? distances[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Offers a candidate, it is kept if it is among the k smallest so far
+     *
+     * @param distance distance of the candidate
+     * @param row      database row of the candidate
+     * @return true if the candidate was kept
+     */
+    public boolean offer(double distance, int row) {
+        if (size < distances.length) {
+            //sift up
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!greater(distance, row, distances[parent], rows[parent])) {
+                    break;
+                }
+                distances[i] = distances[parent];
+                rows[i] = rows[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            rows[i] = row;
+            return true;
+        }
+        if (size == 0 || !greater(distances[0], rows[0], distance, row)) {
+            return false;
+        }
+        //replace root and sift down
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && greater(distances[child + 1], rows[child + 1], distances[child], rows[child])) {
+                child++;
+            }
+            if (!greater(distances[child], rows[child], distance, row)) {
+                break;
+            }
+            distances[i] = distances[child];
+            rows[i] = rows[child];
+            i = child;
+        }
+        distances[i] = distance;
+        rows[i] = row;
+        return true;
+    }
+
+    /**
+     * Copies the entries sorted by ascending distance (ties by row),
+     * the heap itself is left unchanged
+     *
+     * @param sortedDistances array of at least size() values
+     * @param sortedRows      array of at least size() values
+     */
+    public void sorted(double[] sortedDistances, int[] sortedRows) {
+        //insertion sort, k is small
+        for (int i = 0; i < size; i++) {
+            double d = distances[i];
+            int r = rows[i];
+            int j = i - 1;
+            while (j >= 0 && greater(sortedDistances[j], sortedRows[j], d, r)) {
+                sortedDistances[j + 1] = sortedDistances[j];
+                sortedRows[j + 1] = sortedRows[j];
+                j--;
+            }
+            sortedDistances[j + 1] = d;
+            sortedRows[j + 1] = r;
+        }
+    }
+
+    private static boolean greater(double d1, int r1, double d2, int r2) {
+        return d1 > d2 || (d1 == d2 && r1 > r2);
+    }
+}
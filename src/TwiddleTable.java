@@ -0,0 +1,59 @@
+/**
+ * TwiddleTable This class holds the cosine and sine values of the m-th roots
+ * of unity, cos(2 * PI * j / m) and sin(2 * PI * j / m) for j = 0..m-1
+ * <p>
+ * Any angle 2 * PI * k * i / m used by the Fourier Descriptors is a lookup at
+ * index (k * i) mod m, so the tables replace all trigonometric calls in EFD.
+ * Tables are cached by contour length, the cache is bounded and shared
+ * between threads.
+ *
+ * @author Karina Becker
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TwiddleTable {
+    private static final int CACHE_SIZE = 32; // number of contour lengths kept
+    private static final Map<Integer, TwiddleTable> cache =
+            new LinkedHashMap<Integer, TwiddleTable>(CACHE_SIZE, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, TwiddleTable> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    public final int m;         // The number of points on the contour
+    public final double[] cos;  // cos(2 * PI * j / m)
+    public final double[] sin;  // sin(2 * PI * j / m)
+
+    private TwiddleTable(int m) {
+        this.m = m;
+        cos = new double[m];
+        sin = new double[m];
+        double t = 2.0 * Math.PI / m;
+        for (int j = 0; j < m; j++) {
+            cos[j] = Math.cos(t * j);
+            sin[j] = Math.sin(t * j);
+        }
+    }
+
+    /**
+     * Returns the (cached) table for a contour length
+     *
+     * @param m the number of points on the contour
+     * @return table with m entries
+     */
+    public static TwiddleTable forLength(int m) {
+        synchronized (cache) {
+            TwiddleTable table = cache.get(m);
+            if (table == null) {
+                table = new TwiddleTable(m);
+                cache.put(m, table);
+            }
+            return table;
+        }
+    }
+}
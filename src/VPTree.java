@@ -0,0 +1,163 @@
+/**
+ * VPTree This class implements an exact vantage point tree for k nearest
+ * neighbour search in any metric space
+ * <p>
+ * Each node picks a vantage point and splits the remaining points at the
+ * median distance to it. A query only descends into a half if the triangle
+ * inequality allows it to hold a point closer than the current k-th match,
+ * so the result is the same as a brute force scan (ties ordered by row).
+ * The tree is stored in flat arrays and is immutable after construction.
+ *
+ * @author Karina Becker
+ */
+
+import java.util.Random;
+
+public class VPTree {
+    private static final double SLACK = 1e-9; // relative slack so rounding never prunes a tie
+    private final int[] points;     // row of each node, subtree of node i spans [i, end)
+    private final double[] radius;  // median distance of the inner half to the vantage point
+    private final int[] innerEnd;   // end of the inner half, the outer half spans [innerEnd, end)
+
+    /**
+     * Distance between two database rows, must be a metric
+     */
+    public interface Metric {
+        double distance(int a, int b);
+    }
+
+    /**
+     * Distance between the query and a database row, same metric as used for the tree
+     */
+    public interface Query {
+        double distance(int row);
+    }
+
+    /**
+     * Builds the tree
+     *
+     * @param size   number of database rows
+     * @param metric distance between rows
+     */
+    public VPTree(int size, Metric metric) {
+        points = new int[size];
+        radius = new double[size];
+        innerEnd = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = i;
+        }
+        double[] scratch = new double[size];
+        build(0, size, metric, scratch, new Random(size));
+    }
+
+    private void build(int start, int end, Metric metric, double[] dist, Random random) {
+        while (end - start > 1) {
+            //random vantage point to the front
+            swap(start, start + random.nextInt(end - start), dist);
+            int vantage = points[start];
+            for (int i = start + 1; i < end; i++) {
+                dist[i] = metric.distance(vantage, points[i]);
+            }
+            int median = (start + 1 + end) >>> 1;
+            select(start + 1, end - 1, median, dist);
+            radius[start] = dist[median];
+            innerEnd[start] = median;
+            build(start + 1, median, metric, dist, random);
+            start = median; // outer half without recursion
+        }
+        if (end - start == 1) {
+            innerEnd[start] = end;
+        }
+    }
+
+    /**
+     * Partial sort of [left, right] so that position n holds the n-th smallest distance
+     */
+    private void select(int left, int right, int n, double[] dist) {
+        while (left < right) {
+            double pivot = dist[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (dist[i] < pivot) {
+                    i++;
+                }
+                while (dist[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--, dist);
+                }
+            }
+            if (n <= j) {
+                right = j;
+            } else if (n >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j, double[] dist) {
+        int p = points[i];
+        points[i] = points[j];
+        points[j] = p;
+        double d = dist[i];
+        dist[i] = dist[j];
+        dist[j] = d;
+    }
+
+    /**
+     * Finds the k nearest rows of a query
+     *
+     * @param query distance of the query to a row
+     * @param k     number of neighbours
+     * @return neighbours, use TopK.sorted() for ascending order
+     */
+    public TopK search(Query query, int k) {
+        TopK result = new TopK(k);
+        if (k > 0 && points.length > 0) {
+            search(0, points.length, query, result);
+        }
+        return result;
+    }
+
+    private void search(int start, int end, Query query, TopK result) {
+        while (start < end) {
+            int vantage = points[start];
+            double d = query.distance(vantage);
+            result.offer(d, vantage);
+            int median = innerEnd[start];
+            if (median >= end) {
+                return;
+            }
+            //inner half holds distances <= mu, outer half distances >= mu,
+            //visit the half the query falls into first, the other one only if it can hold a closer row
+            double mu = radius[start];
+            if (d < mu) {
+                if (d - bound(result, d, mu) <= mu) {
+                    search(start + 1, median, query, result);
+                }
+                if (d + bound(result, d, mu) < mu) {
+                    return;
+                }
+                start = median;
+            } else {
+                if (d + bound(result, d, mu) >= mu) {
+                    search(median, end, query, result);
+                }
+                if (d - bound(result, d, mu) > mu) {
+                    return;
+                }
+                end = median;
+                start = start + 1;
+            }
+        }
+    }
+
+    private static double bound(TopK result, double d, double mu) {
+        double tau = result.worstDistance();
+        return tau + (tau + d + mu) * SLACK;
+    }
+}